@@ -1,17 +1,48 @@
 package jp.kt.dbm;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedSet;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 import jp.kt.fileio.FileLock;
 import jp.kt.fileio.FileUtil;
@@ -27,19 +58,33 @@ import jp.kt.tool.Validator;
  * 1つのDbmオブジェクトに対して1回のみ実行可能です.<br>
  * よって、コミットやロールバック後は、書込み処理は不可ですが、読み込み処理は可能です.
  * </p>
+ * <p>
+ * シリアライズ時は、DBMファイルの内容は含まず、DBMファイルパスやモードなどの情報と、<br>
+ * ロード時のファイルのバージョン、未commitの変更差分のみを出力します.<br>
+ * デシリアライズされたDbmオブジェクトは、最初に操作された時点でDBMファイルを再ロードし、<br>
+ * 変更差分を適用します（書込み完了前の書込み可能モードの場合は、再ロード時にファイルロックします）.
+ * </p>
  *
  * @author tatsuya.kumon
  */
 public final class Dbm implements Serializable {
+	private static final long serialVersionUID = 1L;
+
 	/** 最大ロード回数 */
 	private static final int MAX_LOAD_TIMES = 5;
 
 	/** テーブルファイルの拡張子 */
-	private static final String TABLE_FILE_EXT = ".ktdb";
+	static final String TABLE_FILE_EXT = ".ktdb";
 
-	/** DBMファイルパス */
+	/** DBMファイルパス（コンテナ内のDBMの場合は「コンテナファイルパス#DBM名」） */
 	private String dbmFilePath;
 
+	/** 格納先のコンテナ（コンテナ内のDBMでない場合はnull） */
+	private DbmContainer container;
+
+	/** コンテナ内のDBM名 */
+	private String dbmName;
+
 	/** 処理モード */
 	private DbmMode mode;
 
@@ -49,18 +94,57 @@ public final class Dbm implements Serializable {
 	/** DBMファイルのパーミッション */
 	private String filePermission;
 
+	/** 指定された書込み形式（未指定の場合はnull） */
+	private DbmFormat format;
+
+	/** ロードしたDBMファイルの形式（新規の場合はnull） */
+	private transient DbmFormat loadedFormat;
+
+	/** ロードしたDBMファイルのバージョン（内容のCRC32.新規の場合は-1） */
+	private long loadedVersion;
+
 	/** メモリ上にロードするMap（rollback用） */
-	private Map<String, String> orgMap;
+	private transient Map<String, String> orgMap;
 
 	/** メモリ上にロードするMap（データ更新用） */
-	private Map<String, String> recordMap;
+	private transient Map<String, String> recordMap;
+
+	/** 有効期限のMap（rollback用） */
+	private transient Map<String, Long> orgExpireMap;
+
+	/** 有効期限のMap（データ更新用）.キーに対する有効期限のミリ秒時刻を保持する */
+	private transient Map<String, Long> expireMap;
+
+	/** ロード後に追加・更新・削除したキー */
+	private transient Set<String> dirtyKeySet;
+
+	/** ロード後に全レコード削除したか */
+	private transient boolean isDeletedAll;
 
 	/** DBMファイルのロック */
-	private FileLock lock;
+	private transient FileLock lock;
 
 	/** 書込み完了フラグ */
 	private boolean isCompleteWrite;
 
+	/** ロードにかかったミリ秒数 */
+	private transient long loadMillis;
+
+	/** デシリアライズ後、DBMファイルを未ロードか */
+	private transient boolean isDetached;
+
+	/** デシリアライズ後、未適用の変更差分 */
+	private transient Delta pendingDelta;
+
+	/** 破損箇所より前のレコードを復旧するか */
+	private transient boolean isSalvage;
+
+	/** 読み込み時に破損箇所があったか */
+	private transient boolean isDamaged;
+
+	/** 前方一致検索用のソート済みキーの索引（未作成の場合はnull） */
+	private transient volatile TreeSet<String> keyIndex;
+
 	/**
 	 * コンストラクタ.
 	 * <p>
@@ -84,14 +168,11 @@ public final class Dbm implements Serializable {
 	 */
 	Dbm(String dir, String dbmName, DbmMode mode, int fileLockSec,
 			String filePermission) throws Exception {
-		FileUtil fileUtil = new FileUtil(dir);
-		if (!fileUtil.isDirectory()) {
-			// ディレクトリが存在しない場合はエラー
-			throw new DbmDirNotFoundException(fileUtil.getPath());
-		}
-		fileUtil.setNextPath(dbmName + TABLE_FILE_EXT);
 		// 初期処理
-		init(fileUtil.getPath(), mode, fileLockSec, filePermission);
+		init(createDbmFilePath(dir, dbmName), mode, fileLockSec,
+				filePermission);
+		// DBMファイルのロード
+		load();
 	}
 
 	/**
@@ -117,6 +198,113 @@ public final class Dbm implements Serializable {
 			throws Exception {
 		// 初期処理
 		init(dbmFilePath, mode, fileLockSec, filePermission);
+		// DBMファイルのロード
+		load();
+	}
+
+	/**
+	 * 一括ロード用の内部コンストラクタ.
+	 * <p>
+	 * 初期処理のみ行い、DBMファイルのロックや読み込みは行いません.
+	 * </p>
+	 */
+	private Dbm() {
+	}
+
+	/**
+	 * DBMファイルのロックのみ行ったDbmオブジェクトを生成する.
+	 * <p>
+	 * 一括ロード用です.<br>
+	 * ロック（{@link DbmMode#READ_ONLY} モードの場合はロック解除待ち）の後、<br>
+	 * {@link #readLockedFile()} で読み込みを行います.
+	 * </p>
+	 *
+	 * @param dbmFilePath
+	 *            DBMファイルパス
+	 * @param mode
+	 *            処理モード
+	 * @param fileLockSec
+	 *            最大ファイルロック秒数
+	 * @param filePermission
+	 *            ファイルパーミッション.<br>
+	 *            3桁数字で指定する
+	 * @return ロック済みのDbmオブジェクト
+	 * @throws Exception
+	 */
+	static Dbm createLocked(String dbmFilePath, DbmMode mode, int fileLockSec,
+			String filePermission) throws Exception {
+		long start = System.currentTimeMillis();
+		Dbm dbm = new Dbm();
+		dbm.init(dbmFilePath, mode, fileLockSec, filePermission);
+		dbm.lockFile();
+		dbm.loadMillis = System.currentTimeMillis() - start;
+		return dbm;
+	}
+
+	/**
+	 * {@link #createLocked(String, DbmMode, int, String)} でロックしたDBMファイルを読み込む.
+	 *
+	 * @throws Exception
+	 */
+	void readLockedFile() throws Exception {
+		long start = System.currentTimeMillis();
+		if (this.recordMap == null) {
+			readFile();
+		}
+		// rollback用のMapにコピー
+		copyToOrgMap();
+		this.loadMillis += System.currentTimeMillis() - start;
+	}
+
+	/**
+	 * コンテナ内のDBMのコンストラクタ.
+	 * <p>
+	 * コンテナ内にDBMが無ければ、<br>
+	 * {@link DbmMode#ALL_OPERATE} モードの場合は、新規作成します.<br>
+	 * それ以外のモードの場合は、{@link DbmFileNotFoundException} がthrowされます.
+	 * </p>
+	 *
+	 * @param container
+	 *            コンテナ
+	 * @param dbmName
+	 *            DBM名
+	 * @param mode
+	 *            処理モード
+	 * @param fileLockSec
+	 *            最大ファイルロック秒数
+	 * @param filePermission
+	 *            コンテナファイル新規作成時のファイルパーミッション.<br>
+	 *            3桁数字で指定する
+	 * @throws Exception
+	 */
+	Dbm(DbmContainer container, String dbmName, DbmMode mode, int fileLockSec,
+			String filePermission) throws Exception {
+		this.container = container;
+		this.dbmName = dbmName;
+		// 初期処理
+		init(container.getPath() + "#" + dbmName, mode, fileLockSec,
+				filePermission);
+		// DBMのロード
+		load();
+	}
+
+	/**
+	 * ディレクトリとDBM名からDBMファイルパスを生成する.
+	 *
+	 * @param dir
+	 *            ディレクトリ
+	 * @param dbmName
+	 *            DBM名
+	 * @return DBMファイルパス
+	 */
+	static String createDbmFilePath(String dir, String dbmName) {
+		FileUtil fileUtil = new FileUtil(dir);
+		if (!fileUtil.isDirectory()) {
+			// ディレクトリが存在しない場合はエラー
+			throw new DbmDirNotFoundException(fileUtil.getPath());
+		}
+		fileUtil.setNextPath(dbmName + TABLE_FILE_EXT);
+		return fileUtil.getPath();
 	}
 
 	/**
@@ -140,8 +328,6 @@ public final class Dbm implements Serializable {
 		this.fileLockSec = fileLockSec;
 		this.filePermission = filePermission;
 		this.isCompleteWrite = false;
-		// DBMファイルのロード
-		load();
 	}
 
 	/**
@@ -154,8 +340,32 @@ public final class Dbm implements Serializable {
 	 *
 	 * @throws Exception
 	 */
-	@SuppressWarnings("unchecked")
 	private void load() throws Exception {
+		long start = System.currentTimeMillis();
+		if (container != null) {
+			// コンテナ内のDBMの場合
+			loadFromContainer();
+		} else if (lockFile()) {
+			// DBMファイルが存在する場合は読み込み
+			readFile();
+		}
+		// rollback用のMapにコピー
+		copyToOrgMap();
+		this.loadMillis = System.currentTimeMillis() - start;
+	}
+
+	/**
+	 * DBMファイルのロック.
+	 * <p>
+	 * DBMファイルが無ければ、<br>
+	 * {@link DbmMode#ALL_OPERATE} モードの場合は、空のMapを生成します.<br>
+	 * それ以外のモードの場合は、{@link DbmFileNotFoundException} がthrowされます.
+	 * </p>
+	 *
+	 * @return DBMファイルが存在する場合はtrue
+	 * @throws Exception
+	 */
+	private boolean lockFile() throws Exception {
 		FileUtil f = new FileUtil(dbmFilePath);
 		boolean existFile = f.isFile();
 		if (!existFile) {
@@ -165,53 +375,552 @@ public final class Dbm implements Serializable {
 			if (mode.equals(DbmMode.ALL_OPERATE)) {
 				// テーブル操作モードの場合はMap生成
 				this.recordMap = new HashMap<String, String>();
+				this.expireMap = new HashMap<String, Long>();
+				this.loadedVersion = -1;
 			} else {
 				// テーブル操作モードでない場合はException
 				throw new DbmFileNotFoundException(dbmFilePath);
 			}
 		} else {
 			/*
-			 * テーブルファイルが存在する場合は読み込み
+			 * テーブルファイルが存在する場合はロック
 			 */
 			lock = new FileLock(dbmFilePath, fileLockSec);
-			if (mode.equals(DbmMode.READ_ONLY)) {
+			if (isWaitOnly()) {
 				// 読み取り専用モードの場合はロック解除されるのを待つ
 				lock.waitRelease();
 			} else {
 				// 読み取り専用モード以外はファイルロックする
 				lock.lock();
 			}
-			// 読み込み実行（最大5回までリトライする）
-			for (int i = 1; i <= MAX_LOAD_TIMES; i++) {
-				Object obj = null;
-				ObjectInputStream ois = null;
-				try {
-					FileInputStream fis = new FileInputStream(dbmFilePath);
-					BufferedInputStream bis = new BufferedInputStream(fis);
-					ois = new ObjectInputStream(bis);
-					obj = ois.readObject();
-					// インスタンス変数にセット
-					this.recordMap = (HashMap<String, String>) obj;
-					// Exceptionが発生しなかったのでbreak;
-					break;
-				} catch (Exception e) {
-					// Exceptionが発生したらリトライ
-					if (i < MAX_LOAD_TIMES) {
-						// リトライする前に0.5秒sleepする
-						Thread.sleep(500);
-					} else {
-						// 最大リトライ回数に達したらExceptionをthrow
-						throw e;
+		}
+		return existFile;
+	}
+
+	/**
+	 * ロック済みのDBMファイルを読み込む.
+	 * <p>
+	 * シリアライズ形式のファイルが書き込み途中で終端に達しない場合はリトライします.<br>
+	 * ファイルが破損している場合はリトライせず、{@link DbmFileCorruptedException} をthrowします.<br>
+	 * その際、ロード時にファイルロックしていた場合はロックを解除します.
+	 * </p>
+	 *
+	 * @throws Exception
+	 */
+	private void readFile() throws Exception {
+		// 読み込み実行（最大5回までリトライする）
+		for (int i = 1; i <= MAX_LOAD_TIMES; i++) {
+			InputStream in = null;
+			try {
+				CheckedInputStream cin = new CheckedInputStream(
+						new FileInputStream(dbmFilePath), new CRC32());
+				in = new BufferedInputStream(cin);
+				// 読み込んでインスタンス変数にセット
+				readRecords(in);
+				this.loadedVersion = cin.getChecksum().getValue();
+				// Exceptionが発生しなかったのでbreak;
+				break;
+			} catch (DbmFileCorruptedException e) {
+				// 破損している場合はリトライしない
+				if (!isWaitOnly()) {
+					// ロック解除待ちのみの場合はロックしていないため解除しない
+					releaseLock();
+				}
+				throw e;
+			} catch (Exception e) {
+				// Exceptionが発生したらリトライ
+				if (i < MAX_LOAD_TIMES) {
+					// リトライする前に0.5秒sleepする
+					Thread.sleep(500);
+				} else {
+					// 最大リトライ回数に達したらExceptionをthrow
+					throw e;
+				}
+			} finally {
+				if (in != null) {
+					in.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * コンテナ内のDBMのロード.
+	 * <p>
+	 * 書込み可能モードの場合はDBM単位でファイルロックします.<br>
+	 * {@link DbmMode#READ_ONLY} モードの場合は、commit済みのデータを読み込むためロック解除を待ちません.
+	 * </p>
+	 *
+	 * @throws Exception
+	 */
+	private void loadFromContainer() throws Exception {
+		if (!isWaitOnly()) {
+			// 読み取り専用モード以外はファイルロックする
+			lock = new FileLock(dbmFilePath, fileLockSec);
+			lock.lock();
+		}
+		byte[] data = container.readDbm(dbmName);
+		if (data == null) {
+			/*
+			 * コンテナ内にDBMが存在しない場合の処理
+			 */
+			if (mode.equals(DbmMode.ALL_OPERATE)) {
+				// テーブル操作モードの場合はMap生成
+				this.recordMap = new HashMap<String, String>();
+				this.expireMap = new HashMap<String, Long>();
+				this.loadedVersion = -1;
+			} else {
+				// テーブル操作モードでない場合はException
+				if (!isWaitOnly()) {
+					releaseLock();
+				}
+				throw new DbmFileNotFoundException(dbmFilePath);
+			}
+		} else {
+			// 読み込んでインスタンス変数にセット
+			try {
+				readRecords(new ByteArrayInputStream(data));
+			} catch (DbmFileCorruptedException e) {
+				if (!isWaitOnly()) {
+					releaseLock();
+				}
+				throw e;
+			}
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			this.loadedVersion = crc.getValue();
+		}
+	}
+
+	/**
+	 * ロード時にファイルロックせず、ロック解除待ちのみ行うか判定.
+	 * <p>
+	 * {@link DbmMode#READ_ONLY} モードの場合と、<br>
+	 * 書込み完了後にデシリアライズされたDbmオブジェクトを再ロードする場合が該当します.
+	 * </p>
+	 *
+	 * @return ロック解除待ちのみ行う場合はtrue
+	 */
+	private boolean isWaitOnly() {
+		return mode.equals(DbmMode.READ_ONLY) || isCompleteWrite;
+	}
+
+	/**
+	 * ファイルロックを解除する.
+	 * <p>
+	 * 解除後はロックを保持していない状態とし、同じロックを二重に解除しないようにします.<br>
+	 * 破損検出時にロード処理内で解除した後、rollbackが呼ばれた場合などが該当します.
+	 * </p>
+	 */
+	private void releaseLock() {
+		if (lock != null) {
+			FileLock fileLock = lock;
+			this.lock = null;
+			fileLock.release();
+		}
+	}
+
+	/**
+	 * rollback用のMapにコピーする.
+	 */
+	private void copyToOrgMap() {
+		this.orgMap = new HashMap<String, String>(this.recordMap);
+		this.orgExpireMap = new HashMap<String, Long>(this.expireMap);
+		this.dirtyKeySet = new HashSet<String>();
+		this.isDeletedAll = false;
+	}
+
+	/**
+	 * 前方一致検索用のキーの索引を返す.
+	 * <p>
+	 * 初回のみ全キーから索引を作成し、以降は書き込み・削除時に更新します.<br>
+	 * 読み取り専用のDBMを複数スレッドで共有した場合も、索引の作成は1回のみとなります.
+	 * </p>
+	 *
+	 * @return ソート済みキーの索引
+	 */
+	private TreeSet<String> getKeyIndex() {
+		TreeSet<String> index = keyIndex;
+		if (index == null) {
+			synchronized (this) {
+				index = keyIndex;
+				if (index == null) {
+					index = createKeyIndex(recordMap);
+					keyIndex = index;
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Mapのキーから前方一致検索用の索引を作成する.
+	 * <p>
+	 * キーをソートしてから {@link SortedSet} として渡すことで、{@link TreeSet} は要素を比較せずに線形時間で木を構築します.<br>
+	 * nullのキーはどの前方一致条件にも該当しないため、索引に含めません.
+	 * </p>
+	 *
+	 * @param map
+	 *            対象のMap
+	 * @return ソート済みキーの索引
+	 */
+	private static TreeSet<String> createKeyIndex(Map<String, ?> map) {
+		String[] keys = new String[map.size()];
+		int size = 0;
+		for (String key : map.keySet()) {
+			if (key != null) {
+				keys[size++] = key;
+			}
+		}
+		Arrays.sort(keys, 0, size);
+		return new TreeSet<String>(new SortedKeyList(Arrays.asList(keys)
+				.subList(0, size)));
+	}
+
+	/**
+	 * キーの索引を作成済みの場合は、索引にキーを追加する.
+	 *
+	 * @param key
+	 *            キー
+	 */
+	private void addKeyIndex(String key) {
+		TreeSet<String> index = keyIndex;
+		if (index != null && key != null) {
+			index.add(key);
+		}
+	}
+
+	/**
+	 * キーの索引を作成済みの場合は、索引からキーを削除する.
+	 *
+	 * @param key
+	 *            キー
+	 */
+	private void removeKeyIndex(String key) {
+		TreeSet<String> index = keyIndex;
+		if (index != null && key != null) {
+			index.remove(key);
+		}
+	}
+
+	/**
+	 * デシリアライズされたDbmオブジェクトに、DBMファイルの内容を再ロードする.
+	 * <p>
+	 * 再ロード後、シリアライズ時の未commitの変更差分を適用します.<br>
+	 * 変更差分がある場合に、シリアライズ時からDBMファイルが更新されていれば、<br>
+	 * 変更を上書きしないよう {@link DbmOperationException} をthrowします.
+	 * </p>
+	 */
+	private void attach() {
+		if (!isDetached) {
+			return;
+		}
+		long orgVersion = this.loadedVersion;
+		try {
+			load();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			DbmOperationException ex = new DbmOperationException(
+					"DBMファイルの再ロードに失敗しました", dbmFilePath);
+			ex.initCause(e);
+			throw ex;
+		}
+		if (pendingDelta != null) {
+			if (this.loadedVersion != orgVersion) {
+				// ファイルロック解除
+				if (lock != null && !isCompleteWrite) {
+					releaseLock();
+				}
+				throw new DbmOperationException(
+						"シリアライズ後にDBMファイルが更新されているため、未commitの変更を適用できません",
+						dbmFilePath);
+			}
+			pendingDelta.applyTo(this);
+		}
+		this.pendingDelta = null;
+		this.isDetached = false;
+	}
+
+	/**
+	 * 未commitの変更差分を生成する.
+	 *
+	 * @return 変更差分.変更が無い場合はnull
+	 */
+	private Delta createDelta() {
+		if (isCompleteWrite || recordMap == null
+				|| (!isDeletedAll && dirtyKeySet.isEmpty())) {
+			return null;
+		}
+		Delta delta = new Delta();
+		delta.isDeletedAll = isDeletedAll;
+		for (String key : dirtyKeySet) {
+			if (recordMap.containsKey(key)) {
+				delta.putMap.put(key, recordMap.get(key));
+				Long expireTime = expireMap.get(key);
+				if (expireTime != null) {
+					delta.expireMap.put(key, expireTime);
+				}
+			} else {
+				delta.deleteList.add(key);
+			}
+		}
+		return delta;
+	}
+
+	/**
+	 * シリアライズ処理.
+	 * <p>
+	 * DBMファイルの内容は出力せず、未commitの変更差分のみを出力します.
+	 * </p>
+	 *
+	 * @param out
+	 *            出力ストリーム
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		// DBMファイル削除済みか
+		out.writeBoolean(!isDetached && recordMap == null);
+		// 未commitの変更差分
+		out.writeObject(isDetached ? pendingDelta : createDelta());
+	}
+
+	/**
+	 * デシリアライズ処理.
+	 * <p>
+	 * DBMファイルの再ロードは、最初に操作された時点で行います.
+	 * </p>
+	 *
+	 * @param in
+	 *            入力ストリーム
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 * @throws ClassNotFoundException
+	 *             クラスが見つからない場合
+	 */
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		boolean isDropped = in.readBoolean();
+		this.pendingDelta = (Delta) in.readObject();
+		this.isDetached = !isDropped;
+	}
+
+	/**
+	 * DBMのデータを読み込み、インスタンス変数にセットする.
+	 * <p>
+	 * ファイル形式は先頭のバイトから判定します.<br>
+	 * シリアライズ形式で終端に達した場合のみ、書き込み途中として {@link EOFException} をそのままthrowします.<br>
+	 * ブロック形式のファイルは完成後にリネームで置き換えられるため、終端マーカーが無い場合も破損とします.<br>
+	 * それ以外の読み込みエラーは破損として {@link DbmFileCorruptedException} をthrowします.<br>
+	 * 復旧時は、ブロック形式であれば破損箇所より前のレコードのみを読み込みます.
+	 * </p>
+	 *
+	 * @param in
+	 *            mark/resetをサポートする入力ストリーム
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	@SuppressWarnings("unchecked")
+	private void readRecords(InputStream in) throws IOException {
+		if (DbmBlockFile.isBlockFormat(in)) {
+			// ブロック形式
+			Map<String, String> records = new HashMap<String, String>();
+			Map<String, Long> expires = new HashMap<String, Long>();
+			DbmBlockFile.Reader reader = null;
+			try {
+				// ヘッダの読み込みエラーもレコードと同様に扱う
+				reader = new DbmBlockFile.Reader(in);
+				while (reader.next()) {
+					String key = reader.getKey();
+					records.put(key, reader.getValue());
+					if (reader.getExpireTime() != 0) {
+						expires.put(key, reader.getExpireTime());
 					}
-				} finally {
-					if (ois != null) {
-						ois.close();
+				}
+			} catch (IOException e) {
+				if (!isSalvage) {
+					if (e instanceof EOFException) {
+						// リネーム後のファイルのため、リトライせず破損とする（復旧可能）
+						throw new DbmFileCorruptedException(dbmFilePath,
+								"終端に達していません");
 					}
+					throw new DbmFileCorruptedException(dbmFilePath,
+							(e instanceof StreamCorruptedException) ? e
+									.getMessage() : e.toString());
 				}
+				// 破損箇所より前のレコードのみ復旧
+				this.isDamaged = true;
 			}
+			this.recordMap = records;
+			this.expireMap = expires;
+			this.keyIndex = null;
+			this.loadedFormat = (reader != null && reader.hasDictionary()) ? DbmFormat.BLOCK_DICTIONARY
+					: DbmFormat.BLOCK;
+			return;
 		}
-		// rollback用のMapにコピー
-		this.orgMap = new HashMap<String, String>(this.recordMap);
+		// シリアライズ形式
+		this.loadedFormat = DbmFormat.SERIALIZED;
+		this.keyIndex = null;
+		try {
+			ObjectInputStream ois = new ObjectInputStream(in);
+			this.recordMap = (HashMap<String, String>) ois.readObject();
+			// 有効期限Mapの読み込み
+			this.expireMap = readExpireMap(ois);
+		} catch (EOFException e) {
+			// 書き込み途中
+			throw e;
+		} catch (IOException e) {
+			// StreamCorruptedException、InvalidClassException、OptionalDataException等
+			throw new DbmFileCorruptedException(dbmFilePath, e.toString());
+		} catch (ClassNotFoundException e) {
+			throw new DbmFileCorruptedException(dbmFilePath, e.toString());
+		} catch (ClassCastException e) {
+			throw new DbmFileCorruptedException(dbmFilePath, e.toString());
+		}
+	}
+
+	/**
+	 * 破損したDBMファイルを復旧する.
+	 * <p>
+	 * DBMファイルをロックし、破損箇所より前の正常なレコードのみでDBMファイルを置き換えます.<br>
+	 * 終端マーカーが無いブロック形式のDBMファイルも同様に復旧します.<br>
+	 * 破損していない場合は何もしません.<br>
+	 * ブロックごとのチェックサムを持たないシリアライズ形式のDBMファイルは復旧できず、<br>
+	 * {@link DbmFileCorruptedException} がthrowされます.
+	 * </p>
+	 *
+	 * @param dbmFilePath
+	 *            DBMファイルパス
+	 * @param fileLockSec
+	 *            最大ファイルロック秒数
+	 * @return 復旧後のレコード件数
+	 * @throws Exception
+	 */
+	static int recoverFile(String dbmFilePath, int fileLockSec)
+			throws Exception {
+		Dbm dbm = new Dbm();
+		dbm.init(dbmFilePath, DbmMode.READ_AND_WRITE, fileLockSec, null);
+		dbm.lockFile();
+		try {
+			dbm.isSalvage = true;
+			InputStream in = new BufferedInputStream(new FileInputStream(
+					dbmFilePath));
+			try {
+				dbm.readRecords(in);
+			} finally {
+				in.close();
+			}
+			if (dbm.isDamaged) {
+				// 正常なレコードのみで置き換え
+				dbm.writeFile(false);
+			}
+			return dbm.recordMap.size();
+		} finally {
+			dbm.releaseLock();
+		}
+	}
+
+	/**
+	 * DBMのデータを出力する.
+	 * <p>
+	 * 出力ストリームのcloseは呼び出し元で行います.
+	 * </p>
+	 *
+	 * @param out
+	 *            出力ストリーム
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	void writeRecords(OutputStream out) throws IOException {
+		DbmFormat writeFormat = getWriteFormat();
+		if (writeFormat.isBlock()) {
+			// ブロック形式はキーの昇順に出力
+			DbmBlockFile.Writer writer = new DbmBlockFile.Writer(out,
+					writeFormat.equals(DbmFormat.BLOCK_DICTIONARY));
+			for (String key : sortedKeys()) {
+				Long expireTime = expireMap.get(key);
+				writer.write(key, recordMap.get(key), (expireTime == null) ? 0
+						: expireTime.longValue());
+			}
+			writer.finish();
+			return;
+		}
+		ObjectOutputStream oos = new ObjectOutputStream(out);
+		oos.writeObject(this.recordMap);
+		if (!this.expireMap.isEmpty()) {
+			// 有効期限付きレコードがある場合のみ有効期限Mapを続けて出力
+			oos.writeObject(this.expireMap);
+		}
+		oos.reset();
+		oos.flush();
+	}
+
+	/**
+	 * 有効期限Mapの読み込み.
+	 * <p>
+	 * 有効期限付きレコードが存在しないDBMファイルには有効期限Mapが出力されていないため、<br>
+	 * その場合は空のMapを返します.
+	 * </p>
+	 *
+	 * @param ois
+	 *            レコードのMapを読み込んだ後の入力ストリーム
+	 * @return 有効期限のMap
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 * @throws ClassNotFoundException
+	 *             クラスが見つからない場合
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Long> readExpireMap(ObjectInputStream ois)
+			throws IOException, ClassNotFoundException {
+		try {
+			return (HashMap<String, Long>) ois.readObject();
+		} catch (EOFException e) {
+			// 有効期限Mapが出力されていないファイル
+			return new HashMap<String, Long>();
+		}
+	}
+
+	/**
+	 * 書込み形式を指定する.
+	 *
+	 * @param format
+	 *            書込み形式.nullの場合はロードしたDBMファイルの形式（新規の場合は {@link DbmFormat#SERIALIZED}）
+	 */
+	void setFormat(DbmFormat format) {
+		this.format = format;
+	}
+
+	/**
+	 * commit時の書込み形式を返す.
+	 *
+	 * @return 書込み形式
+	 */
+	private DbmFormat getWriteFormat() {
+		if (this.format != null) {
+			return this.format;
+		}
+		if (this.loadedFormat != null) {
+			return this.loadedFormat;
+		}
+		return DbmFormat.SERIALIZED;
+	}
+
+	/**
+	 * キーの昇順にソートしたキーの配列を返す.
+	 * <p>
+	 * {@link TreeMap} を生成せずにソートします.
+	 * </p>
+	 *
+	 * @return ソートしたキーの配列
+	 */
+	private String[] sortedKeys() {
+		String[] keys = recordMap.keySet().toArray(new String[recordMap.size()]);
+		Arrays.sort(keys);
+		return keys;
 	}
 
 	/**
@@ -230,14 +939,20 @@ public final class Dbm implements Serializable {
 			throw new DbmOperationException(
 					"既にこのDBMは書込み完了済み(commitもしくはrollback済み)です", dbmFilePath);
 		}
+		if (isDetached) {
+			// デシリアライズ後に未ロードの場合は、変更差分を破棄するのみ
+			this.pendingDelta = null;
+			completeWrite();
+			return;
+		}
 		// rollback
 		if (this.orgMap != null) {
 			this.recordMap = new HashMap<String, String>(this.orgMap);
+			this.expireMap = new HashMap<String, Long>(this.orgExpireMap);
+			this.keyIndex = null;
 		}
 		// ファイルロック解除
-		if (lock != null) {
-			lock.release();
-		}
+		releaseLock();
 		// 書込み完了処理
 		completeWrite();
 	}
@@ -261,67 +976,219 @@ public final class Dbm implements Serializable {
 			throw new DbmOperationException(
 					"既にこのDBMは書込み完了済み(commitもしくはrollback済み)です", dbmFilePath);
 		}
+		// デシリアライズ後に未ロードの場合は再ロード
+		attach();
 		// commit
 		if (this.recordMap != null) {
-			// DBMファイル存在確認
-			FileUtil f = new FileUtil(this.dbmFilePath);
-			boolean isNewFile = !f.isFile();
-			// 書き込み処理
-			if (isNewFile || !this.recordMap.equals(this.orgMap)) {
-				// 新規ファイルもしくは内容が変更されている場合はDBMファイル出力
-				ObjectOutputStream oos = null;
-				try {
-					FileOutputStream fos = new FileOutputStream(
-							this.dbmFilePath);
-					oos = new ObjectOutputStream(fos);
-					oos.writeObject(this.recordMap);
-					oos.reset();
-				} finally {
-					if (oos != null) {
-						oos.close();
-					}
+			// 有効期限切れのレコードを削除
+			purgeExpired();
+			if (container != null) {
+				// コンテナ内のDBMの場合
+				commitToContainer();
+			} else {
+				// DBMファイル存在確認
+				FileUtil f = new FileUtil(this.dbmFilePath);
+				boolean isNewFile = !f.isFile();
+				// 書き込み処理
+				if (isNewFile || isModified()
+						|| !getWriteFormat().equals(loadedFormat)) {
+					// 新規ファイルもしくは内容が変更されている場合はDBMファイル出力
+					writeFile(isNewFile);
+				}
+				// パーミッション指定されていて、且つDBMファイル新規作成の場合はパーミッションを変更する
+				if (!Validator.isEmpty(filePermission) && isNewFile) {
+					f.chmod(filePermission);
 				}
-			}
-			// パーミッション指定されていて、且つDBMファイル新規作成の場合はパーミッションを変更する
-			if (!Validator.isEmpty(filePermission) && isNewFile) {
-				f.chmod(filePermission);
 			}
 		}
 		// ファイルロック解除
-		if (lock != null) {
-			lock.release();
-		}
+		releaseLock();
 		// 書込み完了処理
 		completeWrite();
 	}
 
+	/**
+	 * DBMファイルを出力する.
+	 * <p>
+	 * 一時ファイルに出力してディスクに書き込んだ後、DBMファイルと置き換えます.<br>
+	 * 置き換え前にDBMファイルを開いていた読み込み処理は、置き換え前の内容を最後まで読み込めるため、<br>
+	 * ロックせずにDBMファイルをコピーしても、書き込み途中の内容になることはありません.
+	 * </p>
+	 *
+	 * @param isNewFile
+	 *            新規ファイルの場合はtrue
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private void writeFile(boolean isNewFile) throws IOException {
+		Path path = Paths.get(this.dbmFilePath);
+		Path tmpPath = Paths.get(this.dbmFilePath + ".tmp");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tmpPath.toFile());
+			writeRecords(out);
+			// 置き換え後にOSが異常終了しても内容が失われないよう、置き換え前にディスクに書き込む
+			out.getFD().sync();
+		} finally {
+			if (out != null) {
+				out.close();
+			}
+		}
+		if (!isNewFile) {
+			// パーミッションを引き継ぐ
+			try {
+				Files.setPosixFilePermissions(tmpPath,
+						Files.getPosixFilePermissions(path));
+			} catch (UnsupportedOperationException e) {
+				// POSIX非対応のファイルシステムの場合は何もしない
+			}
+		}
+		Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * ファイルの内容をディスクに書き込む.
+	 * <p>
+	 * 別のストリームで出力した一時ファイルを置き換える前に実行します.
+	 * </p>
+	 *
+	 * @param path
+	 *            ファイルパス
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	static void force(Path path) throws IOException {
+		FileChannel ch = FileChannel.open(path, StandardOpenOption.WRITE);
+		try {
+			ch.force(true);
+		} finally {
+			ch.close();
+		}
+	}
+
+	/**
+	 * コンテナ内のDBMのcommit処理.
+	 *
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private void commitToContainer() throws IOException {
+		if (!isModified() && getWriteFormat().equals(loadedFormat)
+				&& container.exists(dbmName)) {
+			// 内容が変更されていない場合は何もしない
+			return;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeRecords(out);
+		boolean isNewFile = container.writeDbm(dbmName, out.toByteArray());
+		// パーミッション指定されていて、且つコンテナファイル新規作成の場合はパーミッションを変更する
+		if (!Validator.isEmpty(filePermission) && isNewFile) {
+			new FileUtil(container.getPath()).chmod(filePermission);
+		}
+	}
+
+	/**
+	 * ロード後に内容が変更されているか判定.
+	 *
+	 * @return 変更されている場合はtrue
+	 */
+	private boolean isModified() {
+		return !this.recordMap.equals(this.orgMap)
+				|| !this.expireMap.equals(this.orgExpireMap);
+	}
+
+	/**
+	 * 有効期限切れのレコードを削除する.
+	 * <p>
+	 * 有効期限付きのレコードのみを走査するため、有効期限の無いレコード数には依存しません.
+	 * </p>
+	 */
+	private void purgeExpired() {
+		if (expireMap.isEmpty()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Long>> it = expireMap.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Long> entry = it.next();
+			if (entry.getValue().longValue() <= now) {
+				recordMap.remove(entry.getKey());
+				removeKeyIndex(entry.getKey());
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * 指定したキーのレコードが有効期限切れか判定.
+	 *
+	 * @param key
+	 *            キー
+	 * @param now
+	 *            現在時刻（ミリ秒）
+	 * @return 有効期限切れの場合はtrue
+	 */
+	private boolean isExpired(String key, long now) {
+		Long expireTime = expireMap.get(key);
+		return expireTime != null && expireTime.longValue() <= now;
+	}
+
+	/**
+	 * 有効期限切れのレコードを除いた、キーの昇順でソートされたMapを生成する.
+	 *
+	 * @return キーの昇順でソートされたMap
+	 */
+	private TreeMap<String, String> createSortedMap() {
+		TreeMap<String, String> map = new TreeMap<String, String>(recordMap);
+		if (!expireMap.isEmpty()) {
+			long now = System.currentTimeMillis();
+			for (Map.Entry<String, Long> entry : expireMap.entrySet()) {
+				if (entry.getValue().longValue() <= now) {
+					map.remove(entry.getKey());
+				}
+			}
+		}
+		return map;
+	}
+
 	/**
 	 * キーに対する値を読み込む.
+	 * <p>
+	 * 有効期限切れのレコードは存在しないものとして扱い、nullを返します.
+	 * </p>
 	 *
 	 * @param key
 	 *            キー
 	 * @return 値
 	 */
 	public String read(String key) {
+		attach();
+		if (!expireMap.isEmpty() && isExpired(key, System.currentTimeMillis())) {
+			return null;
+		}
 		return recordMap.get(key);
 	}
 
 	/**
 	 * 全件読み込む.
 	 * <p>
-	 * キーの昇順でソートされたMapを返します.
+	 * キーの昇順でソートされたMapを返します.<br>
+	 * 有効期限切れのレコードは含みません.
 	 * </p>
 	 *
 	 * @return レコード全件のMap
 	 */
 	public Map<String, String> readAll() {
-		return new TreeMap<String, String>(recordMap);
+		attach();
+		return createSortedMap();
 	}
 
 	/**
 	 * 指定したキーより小さいレコードを読み込む.
 	 * <p>
-	 * キーの昇順でソートされたMapを返します.
+	 * キーの昇順でソートされたMapを返します.<br>
+	 * 有効期限切れのレコードは含みません.
 	 * </p>
 	 *
 	 * @param toKey
@@ -329,13 +1196,15 @@ public final class Dbm implements Serializable {
 	 * @return 指定したキーより小さいレコードのMap
 	 */
 	public Map<String, String> readHead(String toKey) {
-		return new TreeMap<String, String>(recordMap).headMap(toKey);
+		attach();
+		return createSortedMap().headMap(toKey);
 	}
 
 	/**
 	 * 指定したキーより大きいレコードを読み込む.
 	 * <p>
-	 * キーの昇順でソートされたMapを返します.
+	 * キーの昇順でソートされたMapを返します.<br>
+	 * 有効期限切れのレコードは含みません.
 	 * </p>
 	 *
 	 * @param fromKey
@@ -343,7 +1212,233 @@ public final class Dbm implements Serializable {
 	 * @return 指定したキーより大きいレコードのMap
 	 */
 	public Map<String, String> readTail(String fromKey) {
-		return new TreeMap<String, String>(recordMap).tailMap(fromKey);
+		attach();
+		return createSortedMap().tailMap(fromKey);
+	}
+
+	/**
+	 * 指定したキーで始まるレコードを読み込む.
+	 * <p>
+	 * キーの昇順でソートされたMapを返します.<br>
+	 * 有効期限切れのレコードは含みません.<br>
+	 * 初回実行時にキーの索引を作成し、以降は該当レコードのみを走査します.
+	 * </p>
+	 *
+	 * @param prefix
+	 *            キーの前方一致条件
+	 * @return 指定したキーで始まるレコードのMap
+	 */
+	public Map<String, String> readPrefix(String prefix) {
+		attach();
+		TreeMap<String, String> map = new TreeMap<String, String>();
+		long now = System.currentTimeMillis();
+		for (String key : getKeyIndex().tailSet(prefix, true)) {
+			if (!key.startsWith(prefix)) {
+				break;
+			}
+			if (!expireMap.isEmpty() && isExpired(key, now)) {
+				continue;
+			}
+			map.put(key, recordMap.get(key));
+		}
+		return map;
+	}
+
+	/**
+	 * 指定したキーで始まるレコードの件数を返す.
+	 * <p>
+	 * 有効期限切れのレコードは含みません.<br>
+	 * 初回実行時にキーの索引を作成し、以降は該当レコードのみを走査します.
+	 * </p>
+	 *
+	 * @param prefix
+	 *            キーの前方一致条件
+	 * @return 指定したキーで始まるレコードの件数
+	 */
+	public int countPrefix(String prefix) {
+		attach();
+		int count = 0;
+		long now = System.currentTimeMillis();
+		for (String key : getKeyIndex().tailSet(prefix, true)) {
+			if (!key.startsWith(prefix)) {
+				break;
+			}
+			if (expireMap.isEmpty() || !isExpired(key, now)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * 全件を並列処理する {@link Stream} を返す.
+	 * <p>
+	 * メモリ上のMapをコピーせず、ハッシュのバケット単位で分割して {@link java.util.concurrent.ForkJoinPool}
+	 * で並列処理します.<br>
+	 * 順序は不定です.有効期限切れのレコードは含みません.<br>
+	 * レコードは変更不可の {@link Map.Entry} です.<br>
+	 * Streamの処理中はこのDBMに書き込まないこと.
+	 * </p>
+	 *
+	 * @return 全件の並列 {@link Stream}
+	 */
+	public Stream<Map.Entry<String, String>> parallelStream() {
+		attach();
+		Stream<Map.Entry<String, String>> stream = recordMap.entrySet()
+				.parallelStream();
+		if (!expireMap.isEmpty()) {
+			final long now = System.currentTimeMillis();
+			stream = stream.filter(new Predicate<Map.Entry<String, String>>() {
+				@Override
+				public boolean test(Map.Entry<String, String> entry) {
+					return !isExpired(entry.getKey(), now);
+				}
+			});
+		}
+		return stream
+				.map(new Function<Map.Entry<String, String>, Map.Entry<String, String>>() {
+					@Override
+					public Map.Entry<String, String> apply(
+							Map.Entry<String, String> entry) {
+						return new AbstractMap.SimpleImmutableEntry<String, String>(
+								entry);
+					}
+				});
+	}
+
+	/**
+	 * DBMファイルの全件を並列処理する {@link Stream} を返す.
+	 * <p>
+	 * ブロック形式のDBMファイルはメモリ上に展開せず、ブロック単位で分割してファイルから並列に読み込みます.<br>
+	 * この場合はキーの昇順となります.<br>
+	 * シリアライズ形式のDBMファイルは {@link DbmMode#READ_ONLY} モードでロードして {@link #parallelStream()}
+	 * を返します.<br>
+	 * 有効期限切れのレコードは含みません.<br>
+	 * ファイルを開いたままとなるため、使用後はStreamをcloseすること.
+	 * </p>
+	 *
+	 * @param dbmFilePath
+	 *            DBMファイルパス
+	 * @param fileLockSec
+	 *            最大ファイルロック秒数
+	 * @return 全件の並列 {@link Stream}
+	 * @throws Exception
+	 */
+	static Stream<Map.Entry<String, String>> streamFile(String dbmFilePath,
+			int fileLockSec) throws Exception {
+		if (!new FileUtil(dbmFilePath).isFile()) {
+			throw new DbmFileNotFoundException(dbmFilePath);
+		}
+		// ロック解除されるのを待つ
+		new FileLock(dbmFilePath, fileLockSec).waitRelease();
+		final FileChannel channel = FileChannel.open(Paths.get(dbmFilePath),
+				StandardOpenOption.READ);
+		Stream<Map.Entry<String, String>> stream = null;
+		try {
+			InputStream in = new BufferedInputStream(
+					Channels.newInputStream(channel), 4);
+			if (DbmBlockFile.isBlockFormat(in)) {
+				// ブロック形式はファイルからブロック単位で並列に読み込む
+				stream = StreamSupport.stream(
+						new DbmBlockFile.BlockSpliterator(channel), true)
+						.onClose(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									channel.close();
+								} catch (IOException e) {
+									throw new UncheckedIOException(e);
+								}
+							}
+						});
+				return stream;
+			}
+		} finally {
+			if (stream == null) {
+				channel.close();
+			}
+		}
+		// シリアライズ形式はロードして並列処理
+		return new Dbm(dbmFilePath, DbmMode.READ_ONLY, fileLockSec, null)
+				.parallelStream();
+	}
+
+	/**
+	 * 全件をテキストとして出力する.
+	 * <p>
+	 * キーの昇順に出力します.<br>
+	 * 有効期限切れのレコードは出力しません.<br>
+	 * writerのcloseは呼び出し元で行います.
+	 * </p>
+	 *
+	 * @param writer
+	 *            出力先
+	 * @param textFormat
+	 *            テキスト形式
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	public void export(Writer writer, DbmTextFormat textFormat)
+			throws IOException {
+		attach();
+		long now = System.currentTimeMillis();
+		for (String key : sortedKeys()) {
+			if (!expireMap.isEmpty() && isExpired(key, now)) {
+				continue;
+			}
+			textFormat.writeRecord(writer, key, recordMap.get(key));
+		}
+		writer.flush();
+	}
+
+	/**
+	 * DBMファイルの全件をテキストとして出力する.
+	 * <p>
+	 * キーの昇順に出力します.有効期限切れのレコードは出力しません.<br>
+	 * ブロック形式のDBMファイルはメモリ上に展開せず、ファイルから順次出力します.<br>
+	 * シリアライズ形式のDBMファイルは {@link DbmMode#READ_ONLY} モードでロードして出力します.
+	 * </p>
+	 *
+	 * @param dbmFilePath
+	 *            DBMファイルパス
+	 * @param writer
+	 *            出力先
+	 * @param textFormat
+	 *            テキスト形式
+	 * @param fileLockSec
+	 *            最大ファイルロック秒数
+	 * @throws Exception
+	 */
+	static void exportFile(String dbmFilePath, Writer writer,
+			DbmTextFormat textFormat, int fileLockSec) throws Exception {
+		if (!new FileUtil(dbmFilePath).isFile()) {
+			throw new DbmFileNotFoundException(dbmFilePath);
+		}
+		// ロック解除されるのを待つ
+		new FileLock(dbmFilePath, fileLockSec).waitRelease();
+		InputStream in = new BufferedInputStream(new FileInputStream(
+				dbmFilePath));
+		try {
+			if (DbmBlockFile.isBlockFormat(in)) {
+				// ブロック形式はファイルから順次出力
+				long now = System.currentTimeMillis();
+				DbmBlockFile.Reader reader = new DbmBlockFile.Reader(in);
+				while (reader.next()) {
+					long expireTime = reader.getExpireTime();
+					if (expireTime == 0 || expireTime > now) {
+						textFormat.writeRecord(writer, reader.getKey(),
+								reader.getValue());
+					}
+				}
+				writer.flush();
+				return;
+			}
+		} finally {
+			in.close();
+		}
+		// シリアライズ形式はロードして出力
+		new Dbm(dbmFilePath, DbmMode.READ_ONLY, fileLockSec, null).export(
+				writer, textFormat);
 	}
 
 	/**
@@ -371,8 +1466,59 @@ public final class Dbm implements Serializable {
 			throw new DbmOperationException(
 					"既にこのDBMは書込み完了済み(commitもしくはrollback済み)です", dbmFilePath);
 		}
+		// デシリアライズ後に未ロードの場合は再ロード
+		attach();
+		// Mapにセット
+		recordMap.put(key, data);
+		dirtyKeySet.add(key);
+		addKeyIndex(key);
+		// 有効期限は解除する
+		expireMap.remove(key);
+	}
+
+	/**
+	 * 有効期限付きでレコードを1件書き込む.
+	 * <p>
+	 * データが存在しなければINSERT、存在すればUPDATEとなります.<br>
+	 * 有効期限を過ぎたレコードは読み込み時に存在しないものとして扱われ、<br>
+	 * 以降の {@link Dbm#commit()} 時にファイルから削除されます.<br>
+	 * {@link Dbm#commit()} が実行されるまでファイルには反映されません.<br>
+	 * {@link DbmMode#READ_AND_WRITE} モード、もしくは{@link DbmMode#ALL_OPERATE}
+	 * モードの場合のみ操作可能です.<br>
+	 * 有効期間の秒数が0以下の場合は {@link DbmOperationException} がthrowされます.
+	 * </p>
+	 *
+	 * @param key
+	 *            キー
+	 * @param data
+	 *            値
+	 * @param ttlSec
+	 *            有効期間の秒数（書き込み時点からの秒数）.1以上を指定する
+	 */
+	public void write(String key, String data, int ttlSec) {
+		// モードチェック
+		if (mode.equals(DbmMode.READ_ONLY)) {
+			throw new DbmOperationException(mode.getText()
+					+ "にもかかわらず書き込もうとしました", dbmFilePath, key, data);
+		}
+		// 有効期間チェック
+		if (ttlSec <= 0) {
+			throw new DbmOperationException("有効期間の秒数が不正です（" + ttlSec
+					+ "）", dbmFilePath, key, data);
+		}
+		// このDBMが書込み完了いるかチェック
+		if (isCompleteWrite()) {
+			throw new DbmOperationException(
+					"既にこのDBMは書込み完了済み(commitもしくはrollback済み)です", dbmFilePath);
+		}
+		// デシリアライズ後に未ロードの場合は再ロード
+		attach();
 		// Mapにセット
 		recordMap.put(key, data);
+		dirtyKeySet.add(key);
+		addKeyIndex(key);
+		// 有効期限をセット
+		expireMap.put(key, System.currentTimeMillis() + ttlSec * 1000L);
 	}
 
 	/**
@@ -398,8 +1544,18 @@ public final class Dbm implements Serializable {
 			throw new DbmOperationException(
 					"既にこのDBMは書込み完了済み(commitもしくはrollback済み)です", dbmFilePath);
 		}
+		// デシリアライズ後に未ロードの場合は再ロード
+		attach();
 		// Mapにセット
 		this.recordMap.putAll(recordMap);
+		dirtyKeySet.addAll(recordMap.keySet());
+		for (String key : recordMap.keySet()) {
+			addKeyIndex(key);
+		}
+		// 有効期限は解除する
+		if (!expireMap.isEmpty()) {
+			expireMap.keySet().removeAll(recordMap.keySet());
+		}
 	}
 
 	/**
@@ -424,8 +1580,59 @@ public final class Dbm implements Serializable {
 			throw new DbmOperationException(
 					"既にこのDBMは書込み完了済み(commitもしくはrollback済み)です", dbmFilePath);
 		}
+		// デシリアライズ後に未ロードの場合は再ロード
+		attach();
 		// Mapから削除
 		recordMap.remove(key);
+		expireMap.remove(key);
+		dirtyKeySet.add(key);
+		removeKeyIndex(key);
+	}
+
+	/**
+	 * 指定したキーで始まるレコードを削除.
+	 * <p>
+	 * 値を読み込まずに、キーの索引から該当レコードのみを走査して削除します.<br>
+	 * {@link Dbm#commit()} が実行されるまでファイルには反映されません.<br>
+	 * {@link DbmMode#READ_AND_WRITE} モード、もしくは{@link DbmMode#ALL_OPERATE}
+	 * モードの場合のみ操作可能です.
+	 * </p>
+	 *
+	 * @param prefix
+	 *            キーの前方一致条件
+	 * @return 削除したレコード件数（有効期限切れのレコードは含まない）
+	 */
+	public int deletePrefix(String prefix) {
+		// モードチェック
+		if (mode.equals(DbmMode.READ_ONLY)) {
+			throw new DbmOperationException(mode.getText()
+					+ "にもかかわらずレコード削除しようとしました", dbmFilePath, prefix);
+		}
+		// このDBMが書込み完了いるかチェック
+		if (isCompleteWrite()) {
+			throw new DbmOperationException(
+					"既にこのDBMは書込み完了済み(commitもしくはrollback済み)です", dbmFilePath);
+		}
+		// デシリアライズ後に未ロードの場合は再ロード
+		attach();
+		// 索引とMapから削除
+		int count = 0;
+		long now = System.currentTimeMillis();
+		Iterator<String> it = getKeyIndex().tailSet(prefix, true).iterator();
+		while (it.hasNext()) {
+			String key = it.next();
+			if (!key.startsWith(prefix)) {
+				break;
+			}
+			if (expireMap.isEmpty() || !isExpired(key, now)) {
+				count++;
+			}
+			it.remove();
+			recordMap.remove(key);
+			expireMap.remove(key);
+			dirtyKeySet.add(key);
+		}
+		return count;
 	}
 
 	/**
@@ -447,14 +1654,21 @@ public final class Dbm implements Serializable {
 			throw new DbmOperationException(
 					"既にこのDBMは書込み完了済み(commitもしくはrollback済み)です", dbmFilePath);
 		}
+		// デシリアライズ後に未ロードの場合は再ロード
+		attach();
 		// 全レコード削除（＝新しいインスタンスにする）
 		this.recordMap = new HashMap<String, String>();
+		this.expireMap = new HashMap<String, Long>();
+		this.keyIndex = null;
+		dirtyKeySet.clear();
+		isDeletedAll = true;
 	}
 
 	/**
 	 * DBMファイルの削除.
 	 * <p>
 	 * 実行すると即時ファイルが削除され、復旧はできなくなります.<br>
+	 * コンテナ内のDBMの場合は、コンテナからDBMを削除します.<br>
 	 * この操作を行った後でreadやwriteなどを実行すると Exception が発生します.<br>
 	 * {@link DbmMode#ALL_OPERATE} モードの場合のみ操作可能です.<br>
 	 * DBMファイルが存在しなくてもExceptionは発生しません.
@@ -470,10 +1684,30 @@ public final class Dbm implements Serializable {
 					+ "にもかかわらずDBMファイル削除しようとしました", dbmFilePath);
 		}
 		// DBMファイル削除
-		new FileUtil(dbmFilePath).delete();
+		if (container != null) {
+			container.dropDbm(dbmName);
+		} else {
+			new FileUtil(dbmFilePath).delete();
+		}
 		// 復活ができないようにMapを空にする
 		this.orgMap = null;
 		this.recordMap = null;
+		this.orgExpireMap = null;
+		this.expireMap = null;
+		this.isDetached = false;
+		this.pendingDelta = null;
+	}
+
+	/**
+	 * DBMのロードにかかったミリ秒数を返す.
+	 * <p>
+	 * ファイルロック待ちの時間を含みます.
+	 * </p>
+	 *
+	 * @return ロードにかかったミリ秒数
+	 */
+	public long getLoadMillis() {
+		return this.loadMillis;
 	}
 
 	/**
@@ -554,4 +1788,120 @@ public final class Dbm implements Serializable {
 		}
 		return dbmNameList;
 	}
+
+	/**
+	 * ソート済みのキーのリストを {@link SortedSet} として扱うビュー.
+	 * <p>
+	 * 索引の {@link TreeSet} 生成時に、要素の走査のみに使用します.
+	 * </p>
+	 */
+	private static final class SortedKeyList extends AbstractSet<String>
+			implements SortedSet<String> {
+		/** 昇順にソート済みで重複の無いキーのリスト */
+		private final List<String> keyList;
+
+		/**
+		 * コンストラクタ.
+		 *
+		 * @param keyList
+		 *            昇順にソート済みで重複の無いキーのリスト
+		 */
+		private SortedKeyList(List<String> keyList) {
+			this.keyList = keyList;
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			return keyList.iterator();
+		}
+
+		@Override
+		public int size() {
+			return keyList.size();
+		}
+
+		@Override
+		public Comparator<? super String> comparator() {
+			// 自然順序
+			return null;
+		}
+
+		@Override
+		public String first() {
+			if (keyList.isEmpty()) {
+				throw new NoSuchElementException();
+			}
+			return keyList.get(0);
+		}
+
+		@Override
+		public String last() {
+			if (keyList.isEmpty()) {
+				throw new NoSuchElementException();
+			}
+			return keyList.get(keyList.size() - 1);
+		}
+
+		@Override
+		public SortedSet<String> subSet(String fromElement, String toElement) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public SortedSet<String> headSet(String toElement) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public SortedSet<String> tailSet(String fromElement) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * シリアライズ時に出力する未commitの変更差分.
+	 */
+	private static final class Delta implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		/** 全レコード削除したか */
+		private boolean isDeletedAll;
+
+		/** 追加・更新したレコード */
+		private final HashMap<String, String> putMap = new HashMap<String, String>();
+
+		/** 追加・更新したレコードの有効期限 */
+		private final HashMap<String, Long> expireMap = new HashMap<String, Long>();
+
+		/** 削除したキー */
+		private final ArrayList<String> deleteList = new ArrayList<String>();
+
+		/**
+		 * 変更差分をDbmオブジェクトに適用する.
+		 *
+		 * @param dbm
+		 *            再ロード済みのDbmオブジェクト
+		 */
+		private void applyTo(Dbm dbm) {
+			if (isDeletedAll) {
+				dbm.recordMap = new HashMap<String, String>();
+				dbm.expireMap = new HashMap<String, Long>();
+				dbm.keyIndex = null;
+				dbm.isDeletedAll = true;
+			}
+			for (String key : deleteList) {
+				dbm.recordMap.remove(key);
+				dbm.expireMap.remove(key);
+				dbm.removeKeyIndex(key);
+				dbm.dirtyKeySet.add(key);
+			}
+			for (Map.Entry<String, String> entry : putMap.entrySet()) {
+				dbm.recordMap.put(entry.getKey(), entry.getValue());
+				dbm.expireMap.remove(entry.getKey());
+				dbm.addKeyIndex(entry.getKey());
+				dbm.dirtyKeySet.add(entry.getKey());
+			}
+			dbm.expireMap.putAll(expireMap);
+		}
+	}
 }
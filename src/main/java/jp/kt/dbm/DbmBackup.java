@@ -0,0 +1,388 @@
+package jp.kt.dbm;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * DBMファイルのオンラインバックアップ.
+ * <p>
+ * DBMファイルはcommit時に一時ファイルとの置き換えで更新され、<br>
+ * コンテナファイルは追記のみで更新されるため、<br>
+ * 書込み中のDBMのファイルロックを待たずに、commit済みの時点の内容をコピーできます.<br>
+ * ディレクトリ単位のバックアップでは、各DBMファイルはそれぞれコピーした時点の内容となります.
+ * </p>
+ * <p>
+ * バックアップ先ディレクトリには、バックアップ済みファイルの情報とバックアップ番号を記録した<br>
+ * 管理ファイル（{@value #MANIFEST_FILE_NAME}）を出力します.<br>
+ * 差分バックアップでは、前回のバックアップ以降に更新されたDBMファイルのみをコピーし、<br>
+ * コンテナファイルは追記された部分のみをコピーします.
+ * </p>
+ *
+ * @author tatsuya.kumon
+ */
+public final class DbmBackup {
+	/** 管理ファイル名 */
+	public static final String MANIFEST_FILE_NAME = "ktdb-backup.properties";
+
+	/** 管理ファイルのバックアップ番号のキー */
+	private static final String SEQUENCE_KEY = "sequence";
+
+	/** 管理ファイルのファイル情報のキーの接頭辞 */
+	private static final String FILE_KEY_PREFIX = "file.";
+
+	/**
+	 * インスタンス生成不可.
+	 */
+	private DbmBackup() {
+	}
+
+	/**
+	 * DBMファイル1件をバックアップする.
+	 * <p>
+	 * DBMファイルのロックは行わず、commit済みの時点の内容をコピーします.<br>
+	 * コンテナファイルも指定できます.
+	 * </p>
+	 *
+	 * @param dbmFilePath
+	 *            DBMファイルパス
+	 * @param backupFilePath
+	 *            バックアップ先ファイルパス
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	public static void backupFile(String dbmFilePath, String backupFilePath)
+			throws IOException {
+		Path src = Paths.get(dbmFilePath);
+		if (!Files.isRegularFile(src)
+				|| backupFile(src, Paths.get(backupFilePath), null) == null) {
+			throw new DbmFileNotFoundException(dbmFilePath);
+		}
+	}
+
+	/**
+	 * ディレクトリ内のDBMファイルとコンテナファイルを再帰的にバックアップする.
+	 * <p>
+	 * バックアップ先にはディレクトリ構成を保ったままコピーします.<br>
+	 * 差分バックアップの場合は、前回のバックアップ以降に更新されたファイルのみをコピーし、<br>
+	 * バックアップ元に存在しなくなったファイルはバックアップ先からも削除します.<br>
+	 * 差分バックアップでも、バックアップ先は常に全DBMファイルの完全なコピーとなります.
+	 * </p>
+	 *
+	 * @param dir
+	 *            バックアップ元ディレクトリ
+	 * @param backupDir
+	 *            バックアップ先ディレクトリ
+	 * @param isIncremental
+	 *            差分バックアップの場合はtrue
+	 * @return 今回のバックアップ番号
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	public static long backupDir(String dir, String backupDir,
+			boolean isIncremental) throws IOException {
+		Path srcDir = Paths.get(dir);
+		if (!Files.isDirectory(srcDir)) {
+			throw new DbmDirNotFoundException(dir);
+		}
+		Path dstDir = Paths.get(backupDir);
+		Files.createDirectories(dstDir);
+		// 前回の管理ファイル読み込み
+		Path manifestPath = dstDir.resolve(MANIFEST_FILE_NAME);
+		Properties prevManifest = new Properties();
+		if (Files.isRegularFile(manifestPath)) {
+			InputStream in = Files.newInputStream(manifestPath);
+			try {
+				prevManifest.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		long sequence = Long.parseLong(prevManifest.getProperty(SEQUENCE_KEY,
+				"0")) + 1;
+		Properties manifest = new Properties();
+		manifest.setProperty(SEQUENCE_KEY, String.valueOf(sequence));
+		// バックアップ実行
+		for (Path src : findFiles(srcDir, dstDir)) {
+			String relativePath = srcDir.relativize(src).toString()
+					.replace('\\', '/');
+			Path dst = dstDir.resolve(relativePath);
+			String prevInfo = isIncremental ? prevManifest
+					.getProperty(FILE_KEY_PREFIX + relativePath) : null;
+			String info = backupFile(src, dst, prevInfo);
+			if (info != null) {
+				manifest.setProperty(FILE_KEY_PREFIX + relativePath, info);
+			}
+		}
+		// バックアップ元に存在しなくなったファイルを削除
+		for (String key : prevManifest.stringPropertyNames()) {
+			if (key.startsWith(FILE_KEY_PREFIX)
+					&& !manifest.containsKey(key)) {
+				Files.deleteIfExists(dstDir.resolve(key
+						.substring(FILE_KEY_PREFIX.length())));
+			}
+		}
+		// 管理ファイル出力（各ファイルのコピーをディスクに書き込んだ後に出力する）
+		Path tmpPath = dstDir.resolve(MANIFEST_FILE_NAME + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmpPath.toFile());
+		try {
+			manifest.store(out, "kt_dbm backup");
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		Files.move(tmpPath, manifestPath, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		return sequence;
+	}
+
+	/**
+	 * バックアップ対象のファイルを再帰的に検索する.
+	 *
+	 * @param srcDir
+	 *            バックアップ元ディレクトリ
+	 * @param dstDir
+	 *            バックアップ先ディレクトリ（バックアップ元に含まれる場合は除外する）
+	 * @return バックアップ対象ファイルのリスト
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private static List<Path> findFiles(Path srcDir, Path dstDir)
+			throws IOException {
+		Path excludeDir = dstDir.toAbsolutePath().normalize();
+		List<Path> list = new ArrayList<Path>();
+		Stream<Path> stream = Files.walk(srcDir);
+		try {
+			Iterator<Path> it = stream.iterator();
+			while (it.hasNext()) {
+				Path path = it.next();
+				String name = path.getFileName().toString();
+				if ((name.endsWith(Dbm.TABLE_FILE_EXT) || name
+						.endsWith(DbmContainer.CONTAINER_FILE_EXT))
+						&& Files.isRegularFile(path)
+						&& !path.toAbsolutePath().normalize()
+								.startsWith(excludeDir)) {
+					list.add(path);
+				}
+			}
+		} finally {
+			stream.close();
+		}
+		return list;
+	}
+
+	/**
+	 * ファイル1件をバックアップする.
+	 *
+	 * @param src
+	 *            バックアップ元ファイル
+	 * @param dst
+	 *            バックアップ先ファイル
+	 * @param prevInfo
+	 *            前回のバックアップ時のファイル情報.全件バックアップの場合はnull
+	 * @return 今回のバックアップ時のファイル情報.バックアップ中にファイルが削除された場合はnull
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private static String backupFile(Path src, Path dst, String prevInfo)
+			throws IOException {
+		for (int times = 1;; times++) {
+			// ファイル情報はファイルを開く前に取得する（開くまでに置き換えられた場合は、次回も再度コピーされる）
+			BasicFileAttributes attrs;
+			FileChannel ch;
+			try {
+				attrs = Files.readAttributes(src, BasicFileAttributes.class);
+				ch = FileChannel.open(src, StandardOpenOption.READ);
+			} catch (NoSuchFileException e) {
+				return null;
+			}
+			try {
+				long size = snapshotSize(src, ch, attrs.fileKey(), times);
+				if (size < 0) {
+					// 再構成済みのため開き直す
+					continue;
+				}
+				// サイズ、更新日時、ファイル識別子
+				String info = size + "," + attrs.lastModifiedTime().toMillis()
+						+ "," + attrs.fileKey();
+				if (prevInfo != null && Files.isRegularFile(dst)) {
+					if (prevInfo.equals(info)) {
+						// 更新されていない
+						return info;
+					}
+					if (appendContainer(src, ch, size, dst, prevInfo, attrs)) {
+						// コンテナファイルは追記部分のみコピー
+						return info;
+					}
+				}
+				Files.createDirectories(dst.toAbsolutePath().getParent());
+				copy(ch, size, dst);
+				return info;
+			} finally {
+				ch.close();
+			}
+		}
+	}
+
+	/**
+	 * コンテナファイルの追記部分のみをバックアップ先に追記する.
+	 * <p>
+	 * 前回のバックアップ時から同じファイルに追記されただけの場合のみ実行します.<br>
+	 * 再構成されていた場合は何もしません.
+	 * </p>
+	 *
+	 * @param src
+	 *            バックアップ元ファイル
+	 * @param ch
+	 *            バックアップ元のチャネル
+	 * @param size
+	 *            コピーするサイズ
+	 * @param dst
+	 *            バックアップ先ファイル
+	 * @param prevInfo
+	 *            前回のバックアップ時のファイル情報
+	 * @param attrs
+	 *            バックアップ元のファイル属性
+	 * @return 追記した場合はtrue
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private static boolean appendContainer(Path src, FileChannel ch,
+			long size, Path dst, String prevInfo, BasicFileAttributes attrs)
+			throws IOException {
+		if (!src.getFileName().toString()
+				.endsWith(DbmContainer.CONTAINER_FILE_EXT)) {
+			return false;
+		}
+		String[] prev = prevInfo.split(",", 3);
+		long prevSize = Long.parseLong(prev[0]);
+		if (!prev[2].equals(String.valueOf(attrs.fileKey()))
+				|| prevSize >= size || prevSize < DbmContainer.TRAILER_SIZE
+				|| Files.size(dst) != prevSize) {
+			return false;
+		}
+		FileChannel out = FileChannel.open(dst, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			// 前回のトレーラが一致することを確認
+			ByteBuffer srcTrailer = ByteBuffer
+					.allocate(DbmContainer.TRAILER_SIZE);
+			ByteBuffer dstTrailer = ByteBuffer
+					.allocate(DbmContainer.TRAILER_SIZE);
+			DbmContainer.readFully(ch, srcTrailer, prevSize
+					- DbmContainer.TRAILER_SIZE);
+			DbmContainer.readFully(out, dstTrailer, prevSize
+					- DbmContainer.TRAILER_SIZE);
+			srcTrailer.flip();
+			dstTrailer.flip();
+			if (!srcTrailer.equals(dstTrailer)) {
+				return false;
+			}
+			// 追記部分をコピー
+			transfer(ch, prevSize, size, out, prevSize);
+			out.force(true);
+			return true;
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * コピーする時点のファイルサイズを返す.
+	 * <p>
+	 * コンテナファイルの場合は、書き込み途中の追記部分や再構成済みのトレーラを含まないサイズを返します.<br>
+	 * チャネルを開いてからロックを取得するまでに再構成により置き換えられた場合は、-1を返します.
+	 * </p>
+	 *
+	 * @param path
+	 *            ファイルパス
+	 * @param ch
+	 *            チャネル
+	 * @param fileKey
+	 *            チャネルを開く前に取得したファイル識別子
+	 * @param times
+	 *            チャネルを開いた回数
+	 * @return ファイルサイズ.開き直す必要がある場合は-1
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private static long snapshotSize(Path path, FileChannel ch,
+			Object fileKey, int times) throws IOException {
+		if (!path.getFileName().toString()
+				.endsWith(DbmContainer.CONTAINER_FILE_EXT)) {
+			return ch.size();
+		}
+		return new DbmContainer(path.toString()).snapshotSize(ch, fileKey,
+				times);
+	}
+
+	/**
+	 * 一時ファイルにコピーしてディスクに書き込んだ後、バックアップ先ファイルと置き換える.
+	 *
+	 * @param ch
+	 *            バックアップ元のチャネル
+	 * @param size
+	 *            コピーするサイズ
+	 * @param dst
+	 *            バックアップ先ファイル
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private static void copy(FileChannel ch, long size, Path dst)
+			throws IOException {
+		Path tmpPath = Paths.get(dst.toString() + ".tmp");
+		FileChannel out = FileChannel.open(tmpPath, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			transfer(ch, 0, size, out, 0);
+			out.force(true);
+		} finally {
+			out.close();
+		}
+		Files.move(tmpPath, dst, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * チャネル間で指定範囲をコピーする.
+	 *
+	 * @param src
+	 *            コピー元
+	 * @param from
+	 *            コピー元の開始位置
+	 * @param to
+	 *            コピー元の終了位置（この位置は含まない）
+	 * @param dst
+	 *            コピー先
+	 * @param position
+	 *            コピー先の書き込み位置
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private static void transfer(FileChannel src, long from, long to,
+			FileChannel dst, long position) throws IOException {
+		long copied = 0;
+		while (from + copied < to) {
+			long n = dst.transferFrom(src.position(from + copied), position
+					+ copied, to - from - copied);
+			if (n <= 0) {
+				throw new IOException("ファイルの終端に達しました: " + (from + copied));
+			}
+			copied += n;
+		}
+	}
+}
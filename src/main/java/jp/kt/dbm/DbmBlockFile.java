@@ -0,0 +1,991 @@
+package jp.kt.dbm;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * ブロック形式（{@link DbmFormat#BLOCK}）のDBMファイルの入出力.
+ * <p>
+ * ファイル構成は以下の通りです.
+ * </p>
+ * <ul>
+ * <li>ヘッダ（マジックナンバー、バージョン、フラグ、バージョンとフラグのCRC32）
+ * <li>ブロック（レコード件数、バイト数、レコードの並び）の繰り返し
+ * <li>終端（レコード件数0、総レコード件数）
+ * </ul>
+ * <p>
+ * レコードはキーの昇順に出力されている前提です.<br>
+ * 各レコードはキー、値、有効期限の有無、有効期限で構成されます.
+ * </p>
+ * <p>
+ * {@link #FLAG_CHECKSUM} が立っている場合は、ブロックのレコード件数とバイト数の後にそのCRC32を、<br>
+ * レコードの並びの後にそのCRC32を出力します.終端は総レコード件数をレコードの並びとするブロックとなります.<br>
+ * 読み込み時に終端まで達しない場合は {@link EOFException}（書き込み途中）、<br>
+ * CRC32が一致しない場合は {@link StreamCorruptedException}（ファイル破損）となります.
+ * </p>
+ * <p>
+ * {@link #FLAG_DICTIONARY} が立っている場合は、レコードの並びの前にブロック内で重複する値の辞書を出力し、<br>
+ * 重複する値は辞書の番号で出力します.<br>
+ * 辞書はブロックごとに完結しているため、ブロック単位で独立して読み込めます.
+ * </p>
+ *
+ * @author tatsuya.kumon
+ */
+final class DbmBlockFile {
+	/** ヘッダのマジックナンバー（"KTDB"） */
+	static final int MAGIC = 0x4B544442;
+
+	/** ファイル形式のバージョン */
+	private static final int VERSION = 2;
+
+	/** ヘッダのバイト数 */
+	private static final int HEADER_SIZE = 16;
+
+	/** フラグ：ブロックごとのチェックサムあり */
+	static final int FLAG_CHECKSUM = 1;
+
+	/** フラグ：ブロックごとの値の辞書あり */
+	static final int FLAG_DICTIONARY = 2;
+
+	/** 1ブロックの目安バイト数 */
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * インスタンス生成不可.
+	 */
+	private DbmBlockFile() {
+	}
+
+	/**
+	 * 入力ストリームの内容がブロック形式か判定する.
+	 * <p>
+	 * 先頭4バイトを確認した後、読み込み位置を元に戻します.
+	 * </p>
+	 *
+	 * @param in
+	 *            mark/resetをサポートする入力ストリーム
+	 * @return ブロック形式の場合はtrue
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	static boolean isBlockFormat(InputStream in) throws IOException {
+		in.mark(4);
+		int magic = 0;
+		for (int i = 0; i < 4; i++) {
+			int b = in.read();
+			if (b < 0) {
+				in.reset();
+				return false;
+			}
+			magic = (magic << 8) | b;
+		}
+		in.reset();
+		return magic == MAGIC;
+	}
+
+	/**
+	 * 文字列の出力.
+	 *
+	 * @param out
+	 *            出力先
+	 * @param s
+	 *            文字列
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * 文字列の読み込み.
+	 *
+	 * @param in
+	 *            入力元
+	 * @return 文字列
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		return readString(in, in.readInt());
+	}
+
+	/**
+	 * バイト数を読み込み済みの文字列の読み込み.
+	 *
+	 * @param in
+	 *            入力元
+	 * @param length
+	 *            バイト数.nullの場合は負数
+	 * @return 文字列
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private static String readString(DataInputStream in, int length)
+			throws IOException {
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * ヘッダを読み込み、フラグを返す.
+	 *
+	 * @param in
+	 *            入力元
+	 * @return フラグ
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private static int readHeader(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new StreamCorruptedException("ブロック形式のDBMファイルではありません");
+		}
+		int version = in.readInt();
+		int flags = in.readInt();
+		if (in.readInt() != headerChecksum(version, flags)) {
+			throw new StreamCorruptedException("ファイルのヘッダが破損しています");
+		}
+		if (version != VERSION) {
+			throw new StreamCorruptedException("未対応のバージョンです: " + version);
+		}
+		return flags;
+	}
+
+	/**
+	 * ヘッダの2つの数値のチェックサムを計算する.
+	 * <p>
+	 * ブロックのレコード件数とバイト数、ファイルのバージョンとフラグに使用します.
+	 * </p>
+	 *
+	 * @param first
+	 *            1つ目の数値
+	 * @param second
+	 *            2つ目の数値
+	 * @return チェックサム
+	 */
+	private static int headerChecksum(int first, int second) {
+		byte[] header = new byte[] { (byte) (first >>> 24),
+				(byte) (first >>> 16), (byte) (first >>> 8), (byte) first,
+				(byte) (second >>> 24), (byte) (second >>> 16),
+				(byte) (second >>> 8), (byte) second };
+		return checksum(header);
+	}
+
+	/**
+	 * チェックサムを計算する.
+	 *
+	 * @param bytes
+	 *            対象のバイト配列
+	 * @return CRC32
+	 */
+	private static int checksum(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * ブロック形式の書き込み.
+	 * <p>
+	 * レコードはキーの昇順で {@link #write(String, String, long)} すること.
+	 * </p>
+	 */
+	static final class Writer implements Closeable {
+		/** 出力先 */
+		private final DataOutputStream out;
+
+		/** 値の辞書を出力するか */
+		private final boolean isDictionary;
+
+		/** 辞書を出力する場合の、ブロック内のレコード（キー、値、有効期限の並び） */
+		private final List<Object> pendingList;
+
+		/** 辞書を出力する場合の、ブロック内のレコードの目安バイト数 */
+		private int pendingSize;
+
+		/** ブロックのバッファ */
+		private final ByteArrayOutputStream blockBuffer;
+
+		/** ブロックのバッファへの出力 */
+		private final DataOutputStream blockOut;
+
+		/** ブロック内のレコード件数 */
+		private int blockCount;
+
+		/** 総レコード件数 */
+		private long totalCount;
+
+		/**
+		 * コンストラクタ.
+		 * <p>
+		 * ヘッダを出力します.
+		 * </p>
+		 *
+		 * @param out
+		 *            出力先
+		 * @throws IOException
+		 *             入出力エラーが発生した場合
+		 */
+		Writer(OutputStream out) throws IOException {
+			this(out, false);
+		}
+
+		/**
+		 * コンストラクタ.
+		 * <p>
+		 * ヘッダを出力します.
+		 * </p>
+		 *
+		 * @param out
+		 *            出力先
+		 * @param isDictionary
+		 *            ブロック内で重複する値を辞書化して出力する場合はtrue
+		 * @throws IOException
+		 *             入出力エラーが発生した場合
+		 */
+		Writer(OutputStream out, boolean isDictionary) throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(out));
+			this.isDictionary = isDictionary;
+			this.pendingList = isDictionary ? new ArrayList<Object>() : null;
+			this.blockBuffer = new ByteArrayOutputStream(BLOCK_SIZE + 1024);
+			this.blockOut = new DataOutputStream(blockBuffer);
+			// ヘッダ出力
+			int flags = isDictionary ? (FLAG_CHECKSUM | FLAG_DICTIONARY)
+					: FLAG_CHECKSUM;
+			this.out.writeInt(MAGIC);
+			this.out.writeInt(VERSION);
+			this.out.writeInt(flags);
+			this.out.writeInt(headerChecksum(VERSION, flags));
+		}
+
+		/**
+		 * レコードを1件出力する.
+		 *
+		 * @param key
+		 *            キー
+		 * @param value
+		 *            値
+		 * @param expireTime
+		 *            有効期限のミリ秒時刻.有効期限が無い場合は0
+		 * @throws IOException
+		 *             入出力エラーが発生した場合
+		 */
+		void write(String key, String value, long expireTime)
+				throws IOException {
+			if (isDictionary) {
+				// 辞書はブロック単位で作成するため、ブロック分のレコードを保持
+				pendingList.add(key);
+				pendingList.add(value);
+				pendingList.add(Long.valueOf(expireTime));
+				pendingSize += key.length()
+						+ ((value == null) ? 0 : value.length()) + 9;
+			} else {
+				writeString(blockOut, key);
+				writeString(blockOut, value);
+				writeExpireTime(expireTime);
+			}
+			blockCount++;
+			totalCount++;
+			if (blockBuffer.size() >= BLOCK_SIZE || pendingSize >= BLOCK_SIZE) {
+				flushBlock();
+			}
+		}
+
+		/**
+		 * 有効期限の出力.
+		 *
+		 * @param expireTime
+		 *            有効期限のミリ秒時刻.有効期限が無い場合は0
+		 * @throws IOException
+		 *             入出力エラーが発生した場合
+		 */
+		private void writeExpireTime(long expireTime) throws IOException {
+			if (expireTime == 0) {
+				blockOut.writeByte(0);
+			} else {
+				blockOut.writeByte(1);
+				blockOut.writeLong(expireTime);
+			}
+		}
+
+		/**
+		 * 保持しているブロック分のレコードを、値の辞書とともにブロックのバッファに出力する.
+		 * <p>
+		 * ブロック内で2回以上出現する値のみ辞書に登録します.
+		 * </p>
+		 *
+		 * @throws IOException
+		 *             入出力エラーが発生した場合
+		 */
+		private void encodePending() throws IOException {
+			// ブロック内の値の出現回数
+			Map<String, Integer> countMap = new LinkedHashMap<String, Integer>();
+			for (int i = 1; i < pendingList.size(); i += 3) {
+				String value = (String) pendingList.get(i);
+				if (value != null) {
+					Integer count = countMap.get(value);
+					countMap.put(value, (count == null) ? 1 : count + 1);
+				}
+			}
+			// 辞書の出力
+			Map<String, Integer> dictionary = new HashMap<String, Integer>();
+			for (Map.Entry<String, Integer> entry : countMap.entrySet()) {
+				if (entry.getValue().intValue() > 1) {
+					dictionary.put(entry.getKey(), dictionary.size());
+				}
+			}
+			blockOut.writeInt(dictionary.size());
+			for (Map.Entry<String, Integer> entry : countMap.entrySet()) {
+				if (entry.getValue().intValue() > 1) {
+					writeString(blockOut, entry.getKey());
+				}
+			}
+			// レコードの出力
+			for (int i = 0; i < pendingList.size(); i += 3) {
+				writeString(blockOut, (String) pendingList.get(i));
+				String value = (String) pendingList.get(i + 1);
+				Integer index = (value == null) ? null : dictionary.get(value);
+				if (index == null) {
+					writeString(blockOut, value);
+				} else {
+					// 辞書の番号は-2以下で出力
+					blockOut.writeInt(-2 - index.intValue());
+				}
+				writeExpireTime(((Long) pendingList.get(i + 2)).longValue());
+			}
+			pendingList.clear();
+			pendingSize = 0;
+		}
+
+		/**
+		 * バッファ中のブロックを出力する.
+		 *
+		 * @throws IOException
+		 *             入出力エラーが発生した場合
+		 */
+		private void flushBlock() throws IOException {
+			if (blockCount == 0) {
+				return;
+			}
+			if (isDictionary) {
+				encodePending();
+			}
+			blockOut.flush();
+			writeBlock(blockCount, blockBuffer.toByteArray());
+			blockBuffer.reset();
+			blockCount = 0;
+		}
+
+		/**
+		 * チェックサム付きでブロックを出力する.
+		 *
+		 * @param count
+		 *            レコード件数
+		 * @param payload
+		 *            レコードの並び
+		 * @throws IOException
+		 *             入出力エラーが発生した場合
+		 */
+		private void writeBlock(int count, byte[] payload) throws IOException {
+			out.writeInt(count);
+			out.writeInt(payload.length);
+			out.writeInt(headerChecksum(count, payload.length));
+			out.write(payload);
+			out.writeInt(checksum(payload));
+		}
+
+		/**
+		 * 残りのブロックと終端を出力し、出力先をcloseする.
+		 *
+		 * @throws IOException
+		 *             入出力エラーが発生した場合
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				finish();
+			} finally {
+				out.close();
+			}
+		}
+
+		/**
+		 * 残りのブロックと終端を出力する.
+		 * <p>
+		 * 出力先はcloseしません.
+		 * </p>
+		 *
+		 * @throws IOException
+		 *             入出力エラーが発生した場合
+		 */
+		void finish() throws IOException {
+			flushBlock();
+			// 終端
+			ByteArrayOutputStream end = new ByteArrayOutputStream(8);
+			new DataOutputStream(end).writeLong(totalCount);
+			writeBlock(0, end.toByteArray());
+			out.flush();
+		}
+	}
+
+	/**
+	 * ブロック形式の読み込み.
+	 * <p>
+	 * {@link #next()} でレコードを1件ずつ読み進めます.
+	 * </p>
+	 */
+	static final class Reader implements Closeable {
+		/** 入力元 */
+		private final DataInputStream in;
+
+		/** チェックサムありか */
+		private final boolean hasChecksum;
+
+		/** 値の辞書ありか */
+		private final boolean hasDictionary;
+
+		/** ブロック内の値の辞書 */
+		private String[] blockDictionary;
+
+		/** 全ブロックで同じ値を同一インスタンスにするための、辞書の値のMap */
+		private final Map<String, String> sharedValueMap;
+
+		/** ブロック内のレコードの入力元 */
+		private DataInputStream blockIn;
+
+		/** ブロック内の残りレコード件数 */
+		private int blockRemain;
+
+		/** 読み込み済みのレコード件数 */
+		private long readCount;
+
+		/** 終端まで読み込んだか */
+		private boolean isEnd;
+
+		/** 現在のキー */
+		private String key;
+
+		/** 現在の値 */
+		private String value;
+
+		/** 現在の有効期限 */
+		private long expireTime;
+
+		/**
+		 * コンストラクタ.
+		 * <p>
+		 * ヘッダを読み込みます.
+		 * </p>
+		 *
+		 * @param in
+		 *            入力元
+		 * @throws IOException
+		 *             入出力エラーが発生した場合
+		 */
+		Reader(InputStream in) throws IOException {
+			this.in = new DataInputStream(in);
+			// フラグ
+			int flags = readHeader(this.in);
+			this.hasChecksum = (flags & FLAG_CHECKSUM) != 0;
+			this.hasDictionary = (flags & FLAG_DICTIONARY) != 0;
+			this.sharedValueMap = hasDictionary ? new HashMap<String, String>()
+					: null;
+		}
+
+		/**
+		 * 1ブロックのみ読み込むコンストラクタ.
+		 *
+		 * @param block
+		 *            チェックサム検証済みのレコードの並び
+		 * @param count
+		 *            レコード件数
+		 * @param hasDictionary
+		 *            値の辞書ありの場合はtrue
+		 * @throws IOException
+		 *             入出力エラーが発生した場合
+		 */
+		private Reader(byte[] block, int count, boolean hasDictionary)
+				throws IOException {
+			this.in = null;
+			this.hasChecksum = false;
+			this.hasDictionary = hasDictionary;
+			this.sharedValueMap = hasDictionary ? new HashMap<String, String>()
+					: null;
+			this.blockIn = new DataInputStream(new ByteArrayInputStream(block));
+			readDictionary();
+			this.blockRemain = count;
+		}
+
+		/**
+		 * 値の辞書ありか判定する.
+		 *
+		 * @return 値の辞書ありの場合はtrue
+		 */
+		boolean hasDictionary() {
+			return hasDictionary;
+		}
+
+		/**
+		 * 次のレコードを読み込む.
+		 *
+		 * @return 次のレコードが存在する場合はtrue
+		 * @throws IOException
+		 *             入出力エラーが発生した場合.書き込み途中で終端が無い場合は {@link java.io.EOFException}
+		 */
+		boolean next() throws IOException {
+			if (isEnd) {
+				return false;
+			}
+			if (blockRemain == 0) {
+				if (in == null || !readBlock()) {
+					// 1ブロックのみ読み込む場合はブロックの終わりが終端
+					return false;
+				}
+			}
+			key = readString(blockIn);
+			if (hasDictionary) {
+				int length = blockIn.readInt();
+				if (length <= -2) {
+					// 辞書の番号
+					int index = -2 - length;
+					if (index >= blockDictionary.length) {
+						throw new StreamCorruptedException("辞書の番号が不正です: "
+								+ index);
+					}
+					value = blockDictionary[index];
+				} else {
+					value = readString(blockIn, length);
+				}
+			} else {
+				value = readString(blockIn);
+			}
+			expireTime = (blockIn.readByte() == 0) ? 0 : blockIn.readLong();
+			blockRemain--;
+			readCount++;
+			return true;
+		}
+
+		/**
+		 * 次のブロックを読み込む.
+		 *
+		 * @return 終端の場合はfalse
+		 * @throws IOException
+		 *             入出力エラーが発生した場合
+		 */
+		private boolean readBlock() throws IOException {
+			int count = in.readInt();
+			if (!hasChecksum) {
+				if (count == 0) {
+					// 終端
+					checkTotalCount(in.readLong());
+					return false;
+				}
+				byte[] block = new byte[in.readInt()];
+				in.readFully(block);
+				blockIn = new DataInputStream(new ByteArrayInputStream(block));
+				readDictionary();
+				blockRemain = count;
+				return true;
+			}
+			int length = in.readInt();
+			if (in.readInt() != headerChecksum(count, length) || count < 0
+					|| length < 0) {
+				throw new StreamCorruptedException("ブロックのヘッダが破損しています: "
+						+ readCount + "件目以降");
+			}
+			byte[] block = new byte[length];
+			in.readFully(block);
+			if (in.readInt() != checksum(block)) {
+				throw new StreamCorruptedException("ブロックが破損しています: "
+						+ readCount + "件目以降");
+			}
+			blockIn = new DataInputStream(new ByteArrayInputStream(block));
+			if (count == 0) {
+				// 終端
+				checkTotalCount(blockIn.readLong());
+				return false;
+			}
+			readDictionary();
+			blockRemain = count;
+			return true;
+		}
+
+		/**
+		 * ブロック内の値の辞書を読み込む.
+		 * <p>
+		 * 前のブロックまでに同じ値があれば、そのインスタンスを使用します.
+		 * </p>
+		 *
+		 * @throws IOException
+		 *             入出力エラーが発生した場合
+		 */
+		private void readDictionary() throws IOException {
+			if (!hasDictionary) {
+				return;
+			}
+			int size = blockIn.readInt();
+			if (size < 0) {
+				throw new StreamCorruptedException("辞書の件数が不正です: " + size);
+			}
+			blockDictionary = new String[size];
+			for (int i = 0; i < size; i++) {
+				String value = readString(blockIn);
+				String shared = sharedValueMap.get(value);
+				if (shared == null) {
+					sharedValueMap.put(value, value);
+					shared = value;
+				}
+				blockDictionary[i] = shared;
+			}
+		}
+
+		/**
+		 * 終端の総レコード件数を確認する.
+		 *
+		 * @param totalCount
+		 *            終端の総レコード件数
+		 * @throws IOException
+		 *             件数が一致しない場合
+		 */
+		private void checkTotalCount(long totalCount) throws IOException {
+			if (totalCount != readCount) {
+				throw new StreamCorruptedException("レコード件数が一致しません");
+			}
+			isEnd = true;
+		}
+
+		/**
+		 * 残りの全ブロックを検証する.
+		 * <p>
+		 * チェックサムありの場合はレコードを展開せずにチェックサムのみ検証します.
+		 * </p>
+		 *
+		 * @return 総レコード件数
+		 * @throws IOException
+		 *             書き込み途中の場合は {@link EOFException}、破損している場合は
+		 *             {@link StreamCorruptedException}
+		 */
+		long verify() throws IOException {
+			if (hasChecksum) {
+				while (!isEnd) {
+					if (readBlock()) {
+						readCount += blockRemain;
+						blockRemain = 0;
+					}
+				}
+			} else {
+				while (next()) {
+					// 全レコードを展開して確認
+				}
+			}
+			return readCount;
+		}
+
+		/**
+		 * 読み込み済みのレコード件数を返す.
+		 *
+		 * @return 読み込み済みのレコード件数
+		 */
+		long getReadCount() {
+			return readCount;
+		}
+
+		/**
+		 * 現在のキーを返す.
+		 *
+		 * @return キー
+		 */
+		String getKey() {
+			return key;
+		}
+
+		/**
+		 * 現在の値を返す.
+		 *
+		 * @return 値
+		 */
+		String getValue() {
+			return value;
+		}
+
+		/**
+		 * 現在の有効期限を返す.
+		 *
+		 * @return 有効期限のミリ秒時刻.有効期限が無い場合は0
+		 */
+		long getExpireTime() {
+			return expireTime;
+		}
+
+		/*
+		 * (非 Javadoc)
+		 *
+		 * @see java.io.Closeable#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			if (in != null) {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * ブロック単位で分割できる、DBMファイルのレコードの {@link Spliterator}.
+	 * <p>
+	 * 最初にブロックの位置のみを読み込み、分割後は各ブロックをファイルの位置指定で読み込むため、<br>
+	 * 複数スレッドから同じ {@link FileChannel} を並列に読み込めます.<br>
+	 * 有効期限切れのレコードは含みません.<br>
+	 * レコードは変更不可の {@link Map.Entry} です.
+	 * </p>
+	 */
+	static final class BlockSpliterator implements
+			Spliterator<Map.Entry<String, String>> {
+		/** 読み込み元 */
+		private final FileChannel channel;
+
+		/** ブロックの位置（レコードの並びの開始位置、バイト数、レコード件数の並び） */
+		private final long[] blocks;
+
+		/** チェックサムありか */
+		private final boolean hasChecksum;
+
+		/** 値の辞書ありか */
+		private final boolean hasDictionary;
+
+		/** 有効期限の判定に使用する現在時刻 */
+		private final long now;
+
+		/** 次に読み込むブロックの番号 */
+		private int index;
+
+		/** 読み込むブロックの終わりの番号（この番号は含まない） */
+		private int fence;
+
+		/** 読み込み中のブロック */
+		private Reader current;
+
+		/**
+		 * コンストラクタ.
+		 * <p>
+		 * ヘッダと全ブロックの位置を読み込みます.
+		 * </p>
+		 *
+		 * @param channel
+		 *            読み込み元
+		 * @throws IOException
+		 *             入出力エラーが発生した場合
+		 */
+		BlockSpliterator(FileChannel channel) throws IOException {
+			this.channel = channel;
+			int flags = readHeader(new DataInputStream(new ByteArrayInputStream(
+					read(channel, 0, HEADER_SIZE))));
+			this.hasChecksum = (flags & FLAG_CHECKSUM) != 0;
+			this.hasDictionary = (flags & FLAG_DICTIONARY) != 0;
+			this.now = System.currentTimeMillis();
+			// ブロックの位置の読み込み（レコードの並びは読み飛ばす）
+			int headerLength = hasChecksum ? 12 : 8;
+			List<long[]> blockList = new ArrayList<long[]>();
+			long position = HEADER_SIZE;
+			while (true) {
+				DataInputStream in = new DataInputStream(
+						new ByteArrayInputStream(read(channel, position,
+								headerLength)));
+				int count = in.readInt();
+				int length = in.readInt();
+				if (hasChecksum
+						&& (in.readInt() != headerChecksum(count, length)
+								|| count < 0 || length < 0)) {
+					throw new StreamCorruptedException("ブロックのヘッダが破損しています");
+				}
+				if (count == 0) {
+					// 終端
+					break;
+				}
+				blockList.add(new long[] { position + headerLength, length,
+						count });
+				position += headerLength + length + (hasChecksum ? 4 : 0);
+			}
+			this.blocks = new long[blockList.size() * 3];
+			for (int i = 0; i < blockList.size(); i++) {
+				System.arraycopy(blockList.get(i), 0, blocks, i * 3, 3);
+			}
+			this.index = 0;
+			this.fence = blockList.size();
+		}
+
+		/**
+		 * 分割時のコンストラクタ.
+		 *
+		 * @param parent
+		 *            分割元
+		 * @param index
+		 *            最初に読み込むブロックの番号
+		 * @param fence
+		 *            読み込むブロックの終わりの番号（この番号は含まない）
+		 */
+		private BlockSpliterator(BlockSpliterator parent, int index, int fence) {
+			this.channel = parent.channel;
+			this.blocks = parent.blocks;
+			this.hasChecksum = parent.hasChecksum;
+			this.hasDictionary = parent.hasDictionary;
+			this.now = parent.now;
+			this.index = index;
+			this.fence = fence;
+		}
+
+		/*
+		 * (非 Javadoc)
+		 *
+		 * @see java.util.Spliterator#tryAdvance(java.util.function.Consumer)
+		 */
+		@Override
+		public boolean tryAdvance(Consumer<? super Map.Entry<String, String>> action) {
+			try {
+				while (true) {
+					while (current == null || !current.next()) {
+						if (index >= fence) {
+							current = null;
+							return false;
+						}
+						current = readBlock(index++);
+					}
+					long expireTime = current.getExpireTime();
+					if (expireTime == 0 || expireTime > now) {
+						action.accept(new AbstractMap.SimpleImmutableEntry<String, String>(
+								current.getKey(), current.getValue()));
+						return true;
+					}
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		/*
+		 * (非 Javadoc)
+		 *
+		 * @see java.util.Spliterator#trySplit()
+		 */
+		@Override
+		public Spliterator<Map.Entry<String, String>> trySplit() {
+			// 未読み込みのブロックを半分に分割
+			int mid = (index + fence) >>> 1;
+			if (mid <= index) {
+				return null;
+			}
+			BlockSpliterator prefix = new BlockSpliterator(this, index, mid);
+			this.index = mid;
+			return prefix;
+		}
+
+		/*
+		 * (非 Javadoc)
+		 *
+		 * @see java.util.Spliterator#estimateSize()
+		 */
+		@Override
+		public long estimateSize() {
+			long size = 0;
+			for (int i = index; i < fence; i++) {
+				size += blocks[i * 3 + 2];
+			}
+			return size;
+		}
+
+		/*
+		 * (非 Javadoc)
+		 *
+		 * @see java.util.Spliterator#characteristics()
+		 */
+		@Override
+		public int characteristics() {
+			return ORDERED | DISTINCT | NONNULL | IMMUTABLE;
+		}
+
+		/**
+		 * ブロックを読み込む.
+		 *
+		 * @param blockIndex
+		 *            ブロックの番号
+		 * @return ブロックの読み込み
+		 * @throws IOException
+		 *             入出力エラーが発生した場合
+		 */
+		private Reader readBlock(int blockIndex) throws IOException {
+			long position = blocks[blockIndex * 3];
+			int length = (int) blocks[blockIndex * 3 + 1];
+			int count = (int) blocks[blockIndex * 3 + 2];
+			byte[] block = read(channel, position, hasChecksum ? length + 4
+					: length);
+			if (hasChecksum) {
+				DataInputStream in = new DataInputStream(
+						new ByteArrayInputStream(block, length, 4));
+				byte[] payload = new byte[length];
+				System.arraycopy(block, 0, payload, 0, length);
+				if (in.readInt() != checksum(payload)) {
+					throw new StreamCorruptedException("ブロックが破損しています");
+				}
+				block = payload;
+			}
+			return new Reader(block, count, hasDictionary);
+		}
+
+		/**
+		 * ファイルの位置を指定して読み込む.
+		 *
+		 * @param channel
+		 *            読み込み元
+		 * @param position
+		 *            読み込み開始位置
+		 * @param length
+		 *            バイト数
+		 * @return 読み込んだバイト配列
+		 * @throws IOException
+		 *             入出力エラーが発生した場合
+		 */
+		private static byte[] read(FileChannel channel, long position,
+				int length) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) < 0) {
+					throw new EOFException();
+				}
+			}
+			return buffer.array();
+		}
+	}
+}
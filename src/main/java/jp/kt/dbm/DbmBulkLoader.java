@@ -0,0 +1,389 @@
+package jp.kt.dbm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import jp.kt.fileio.FileLock;
+import jp.kt.fileio.FileUtil;
+import jp.kt.tool.Validator;
+
+/**
+ * DBMファイルの一括作成.
+ * <p>
+ * レコードをメモリ上のMapに保持せず、ブロック形式（{@link DbmFormat#BLOCK}）のDBMファイルを直接出力します.<br>
+ * キーの昇順にレコードが追加される間は、そのままファイルに出力します.<br>
+ * 昇順でないレコードが追加された場合は、一定件数ごとにソート済みの一時ファイルを作成し、<br>
+ * {@link #finish()} で全ての一時ファイルをマージします（外部ソート）.<br>
+ * 同じキーのレコードが複数追加された場合は、後から追加されたものが有効になります.
+ * </p>
+ * <p>
+ * 既存のDBMファイルは {@link #finish()} 時に置き換えられます.<br>
+ * ファイルロックは置き換え時のみ行います.
+ * </p>
+ *
+ * @author tatsuya.kumon
+ */
+public final class DbmBulkLoader {
+	/** ソート用バッファのデフォルトレコード件数 */
+	private static final int DEFAULT_SORT_BUFFER_SIZE = 100000;
+
+	/** DBMファイルパス */
+	private final String dbmFilePath;
+
+	/** 最大ファイルロック秒数 */
+	private final int fileLockSec;
+
+	/** DBMファイルのパーミッション */
+	private final String filePermission;
+
+	/** 辞書付きブロック形式で出力するか */
+	private final boolean isDictionary;
+
+	/** ソート済み一時ファイルのリスト（追加順） */
+	private final List<String> runFileList;
+
+	/** 昇順に追加されている間の出力先 */
+	private DbmBlockFile.Writer directWriter;
+
+	/** 直前に出力したキー */
+	private String lastKey;
+
+	/** 昇順でないレコードを保持するソート用バッファ */
+	private TreeMap<String, String> sortBuffer;
+
+	/** ソート用バッファのレコード件数 */
+	private int sortBufferSize;
+
+	/** 完了フラグ */
+	private boolean isFinished;
+
+	/**
+	 * コンストラクタ.
+	 *
+	 * @param dbmFilePath
+	 *            DBMファイルパス
+	 * @param fileLockSec
+	 *            最大ファイルロック秒数
+	 * @param filePermission
+	 *            ファイルパーミッション.<br>
+	 *            3桁数字で指定する
+	 * @param isDictionary
+	 *            辞書付きブロック形式（{@link DbmFormat#BLOCK_DICTIONARY}）で出力する場合はtrue
+	 */
+	DbmBulkLoader(String dbmFilePath, int fileLockSec, String filePermission,
+			boolean isDictionary) {
+		this.dbmFilePath = dbmFilePath;
+		this.fileLockSec = fileLockSec;
+		this.filePermission = filePermission;
+		this.isDictionary = isDictionary;
+		this.runFileList = new ArrayList<String>();
+		this.sortBufferSize = DEFAULT_SORT_BUFFER_SIZE;
+	}
+
+	/**
+	 * ソート用バッファのレコード件数を指定する.
+	 * <p>
+	 * 昇順でないレコードをこの件数だけメモリ上に保持した時点で一時ファイルに出力します.<br>
+	 * デフォルトは100000件.
+	 * </p>
+	 *
+	 * @param sortBufferSize
+	 *            ソート用バッファのレコード件数
+	 */
+	public void setSortBufferSize(int sortBufferSize) {
+		this.sortBufferSize = sortBufferSize;
+	}
+
+	/**
+	 * レコードを1件追加する.
+	 *
+	 * @param key
+	 *            キー
+	 * @param data
+	 *            値
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	public void add(String key, String data) throws IOException {
+		// 完了チェック
+		if (isFinished) {
+			throw new DbmOperationException("既に一括作成は完了しています", dbmFilePath);
+		}
+		if (sortBuffer == null) {
+			if (lastKey == null || key.compareTo(lastKey) > 0) {
+				// 昇順の間はそのまま出力
+				if (directWriter == null) {
+					directWriter = new DbmBlockFile.Writer(new FileOutputStream(
+							nextRunFilePath()));
+				}
+				directWriter.write(key, data, 0);
+				lastKey = key;
+				return;
+			}
+			// 昇順でなくなった場合は、以降はソート用バッファに保持
+			directWriter.close();
+			directWriter = null;
+			sortBuffer = new TreeMap<String, String>();
+		}
+		sortBuffer.put(key, data);
+		if (sortBuffer.size() >= sortBufferSize) {
+			spill();
+		}
+	}
+
+	/**
+	 * 複数レコードをまとめて追加する.
+	 *
+	 * @param recordMap
+	 *            追加するMap
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	public void add(Map<String, String> recordMap) throws IOException {
+		for (Map.Entry<String, String> entry : recordMap.entrySet()) {
+			add(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * テキストを読み込み、全てのレコードを追加する.
+	 * <p>
+	 * readerのcloseは呼び出し元で行います.
+	 * </p>
+	 *
+	 * @param reader
+	 *            入力元
+	 * @param format
+	 *            テキスト形式
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	public void add(Reader reader, DbmTextFormat format) throws IOException {
+		BufferedReader br = (reader instanceof BufferedReader) ? (BufferedReader) reader
+				: new BufferedReader(reader);
+		String[] record;
+		while ((record = format.readRecord(br)) != null) {
+			add(record[0], record[1]);
+		}
+	}
+
+	/**
+	 * 一括作成を完了し、DBMファイルを出力する.
+	 * <p>
+	 * 一時ファイルをマージしてディスクに書き込んだ後、DBMファイルをロックして置き換えます.
+	 * </p>
+	 *
+	 * @throws Exception
+	 *             DBMファイルの出力に失敗した場合
+	 */
+	public void finish() throws Exception {
+		// 完了チェック
+		if (isFinished) {
+			throw new DbmOperationException("既に一括作成は完了しています", dbmFilePath);
+		}
+		isFinished = true;
+		try {
+			if (directWriter != null) {
+				directWriter.close();
+				directWriter = null;
+			}
+			if (sortBuffer != null && !sortBuffer.isEmpty()) {
+				spill();
+			}
+			// 一時ファイルのマージ
+			String tmpFilePath;
+			if (runFileList.size() == 1 && !isDictionary) {
+				// 一時ファイルが1つの場合はそのまま使用
+				tmpFilePath = runFileList.remove(0);
+			} else {
+				tmpFilePath = dbmFilePath + ".bulk";
+				merge(tmpFilePath);
+			}
+			// 置き換え前にディスクに書き込む
+			Dbm.force(Paths.get(tmpFilePath));
+			// DBMファイルの置き換え
+			FileUtil f = new FileUtil(dbmFilePath);
+			boolean isNewFile = !f.isFile();
+			FileLock lock = new FileLock(dbmFilePath, fileLockSec);
+			lock.lock();
+			try {
+				Files.move(Paths.get(tmpFilePath), Paths.get(dbmFilePath),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				lock.release();
+			}
+			// パーミッション指定されていて、且つDBMファイル新規作成の場合はパーミッションを変更する
+			if (!Validator.isEmpty(filePermission) && isNewFile) {
+				f.chmod(filePermission);
+			}
+		} finally {
+			deleteRunFiles();
+		}
+	}
+
+	/**
+	 * 一括作成を中止し、一時ファイルを削除する.
+	 * <p>
+	 * DBMファイルは変更されません.
+	 * </p>
+	 *
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	public void abort() throws IOException {
+		if (isFinished) {
+			return;
+		}
+		isFinished = true;
+		if (directWriter != null) {
+			directWriter.close();
+			directWriter = null;
+		}
+		deleteRunFiles();
+	}
+
+	/**
+	 * ソート用バッファを一時ファイルに出力する.
+	 *
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private void spill() throws IOException {
+		DbmBlockFile.Writer writer = new DbmBlockFile.Writer(
+				new FileOutputStream(nextRunFilePath()));
+		try {
+			for (Map.Entry<String, String> entry : sortBuffer.entrySet()) {
+				writer.write(entry.getKey(), entry.getValue(), 0);
+			}
+		} finally {
+			writer.close();
+		}
+		sortBuffer.clear();
+	}
+
+	/**
+	 * 次の一時ファイルのパスを生成し、一時ファイルのリストに追加する.
+	 *
+	 * @return 一時ファイルのパス
+	 */
+	private String nextRunFilePath() {
+		String path = dbmFilePath + ".run" + runFileList.size();
+		runFileList.add(path);
+		return path;
+	}
+
+	/**
+	 * 全ての一時ファイルをキーの昇順にマージして出力する.
+	 * <p>
+	 * 同じキーが複数の一時ファイルに存在する場合は、後から作成された一時ファイルのレコードを採用します.
+	 * </p>
+	 *
+	 * @param outputFilePath
+	 *            出力先ファイルパス
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private void merge(String outputFilePath) throws IOException {
+		PriorityQueue<Run> queue = new PriorityQueue<Run>();
+		DbmBlockFile.Writer writer = new DbmBlockFile.Writer(
+				new FileOutputStream(outputFilePath), isDictionary);
+		try {
+			for (int i = 0; i < runFileList.size(); i++) {
+				Run run = new Run(i, new DbmBlockFile.Reader(
+						new BufferedInputStream(new FileInputStream(
+								runFileList.get(i)))));
+				if (run.reader.next()) {
+					queue.add(run);
+				} else {
+					run.reader.close();
+				}
+			}
+			String prevKey = null;
+			while (!queue.isEmpty()) {
+				Run run = queue.poll();
+				String key = run.reader.getKey();
+				if (prevKey == null || !prevKey.equals(key)) {
+					// 同じキーは最初に取り出したもの（後から作成された一時ファイル）のみ出力
+					writer.write(key, run.reader.getValue(), 0);
+					prevKey = key;
+				}
+				if (run.reader.next()) {
+					queue.add(run);
+				} else {
+					run.reader.close();
+				}
+			}
+		} finally {
+			for (Run run : queue) {
+				run.reader.close();
+			}
+			writer.close();
+		}
+	}
+
+	/**
+	 * 一時ファイルを全て削除する.
+	 *
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private void deleteRunFiles() throws IOException {
+		for (String path : runFileList) {
+			Files.deleteIfExists(Paths.get(path));
+		}
+		runFileList.clear();
+		Files.deleteIfExists(Paths.get(dbmFilePath + ".bulk"));
+	}
+
+	/**
+	 * マージ中の一時ファイル.
+	 */
+	private static final class Run implements Comparable<Run> {
+		/** 一時ファイルの作成順 */
+		private final int index;
+
+		/** 一時ファイルの読み込み */
+		private final DbmBlockFile.Reader reader;
+
+		/**
+		 * コンストラクタ.
+		 *
+		 * @param index
+		 *            一時ファイルの作成順
+		 * @param reader
+		 *            一時ファイルの読み込み
+		 */
+		private Run(int index, DbmBlockFile.Reader reader) {
+			this.index = index;
+			this.reader = reader;
+		}
+
+		/*
+		 * (非 Javadoc)
+		 *
+		 * @see java.lang.Comparable#compareTo(java.lang.Object)
+		 */
+		@Override
+		public int compareTo(Run o) {
+			int result = reader.getKey().compareTo(o.reader.getKey());
+			if (result != 0) {
+				return result;
+			}
+			// 同じキーの場合は後から作成された一時ファイルを優先
+			return o.index - index;
+		}
+	}
+}
@@ -1,8 +1,17 @@
 package jp.kt.dbm;
 
 import java.io.Serializable;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Stream;
 
 /**
  * DBM接続情報を管理するクラス.
@@ -21,6 +30,9 @@ public class DbmConnection implements Serializable {
 	/** DBMファイルのパーミッション */
 	private String filePermission;
 
+	/** DBMファイルの書込み形式 */
+	private DbmFormat format;
+
 	/**
 	 * DBMファイルの最大ロック秒数を指定する.
 	 * <p>
@@ -50,6 +62,22 @@ public class DbmConnection implements Serializable {
 		this.filePermission = filePermission;
 	}
 
+	/**
+	 * DBMファイルの書込み形式を指定する.
+	 * <p>
+	 * このメソッドを実行しなかった場合は、ロードしたDBMファイルと同じ形式でcommitします.<br>
+	 * 新規作成の場合は {@link DbmFormat#SERIALIZED} となります.<br>
+	 * ロード時は形式を自動判定するため、指定は不要です.<br>
+	 * loadメソッドよりも前に実行すること.
+	 * </p>
+	 *
+	 * @param format
+	 *            {@link DbmFormat} クラスの定数で指定.
+	 */
+	public void setFormat(DbmFormat format) {
+		this.format = format;
+	}
+
 	/**
 	 * DBMをロードする.
 	 * <p>
@@ -69,6 +97,7 @@ public class DbmConnection implements Serializable {
 	public Dbm load(String dir, String dbmName, DbmMode mode) throws Exception {
 		// DBMのロード
 		Dbm dbm = new Dbm(dir, dbmName, mode, fileLockSec, filePermission);
+		dbm.setFormat(format);
 		// DBMリストに追加
 		addDbm(dbm);
 		return dbm;
@@ -91,11 +120,246 @@ public class DbmConnection implements Serializable {
 	public Dbm load(String dbmFilePath, DbmMode mode) throws Exception {
 		// DBMのロード
 		Dbm dbm = new Dbm(dbmFilePath, mode, fileLockSec, filePermission);
+		dbm.setFormat(format);
 		// DBMリストに追加
 		addDbm(dbm);
 		return dbm;
 	}
 
+	/**
+	 * 指定したディレクトリに存在する全てのDBMを並列でロードする.
+	 * <p>
+	 * 並列数はCPU数となります.<br>
+	 * 詳細は {@link #loadAll(String, DbmMode, int)} を参照してください.
+	 * </p>
+	 *
+	 * @param dir
+	 *            DBMファイルが存在するディレクトリ
+	 * @param mode
+	 *            {@link DbmMode} クラスの定数で指定.
+	 * @return DBM名をキーとした、ロードされた {@link Dbm} オブジェクトのMap（DBM名の昇順）
+	 * @throws Exception
+	 *             DBMファイルロード時に例外発生した場合
+	 */
+	public Map<String, Dbm> loadAll(String dir, DbmMode mode) throws Exception {
+		return loadAll(dir, mode, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * 指定したディレクトリに存在する全てのDBMを並列でロードする.
+	 * <p>
+	 * 対象のDBMは {@link Dbm#getDbmNameList(String)} で検索されたものです.<br>
+	 * デッドロックを防ぐため、ファイルロック（{@link DbmMode#READ_ONLY}
+	 * モードの場合はロック解除待ち）はDBM名の昇順に1件ずつ行い、<br>
+	 * その後のDBMファイルの読み込みを並列で行います.<br>
+	 * 1件でもロードに失敗した場合は、取得済みのロックを全て解除してExceptionをthrowします.<br>
+	 * DBMごとのロード時間は {@link Dbm#getLoadMillis()} で取得できます.
+	 * </p>
+	 *
+	 * @param dir
+	 *            DBMファイルが存在するディレクトリ
+	 * @param mode
+	 *            {@link DbmMode} クラスの定数で指定.
+	 * @param parallelism
+	 *            読み込みの並列数
+	 * @return DBM名をキーとした、ロードされた {@link Dbm} オブジェクトのMap（DBM名の昇順）
+	 * @throws Exception
+	 *             DBMファイルロード時に例外発生した場合
+	 */
+	public Map<String, Dbm> loadAll(String dir, DbmMode mode, int parallelism)
+			throws Exception {
+		List<String> dbmNameList = Dbm.getDbmNameList(dir);
+		Collections.sort(dbmNameList);
+		Map<String, Dbm> dbmMap = new TreeMap<String, Dbm>();
+		try {
+			// DBM名の昇順にロック
+			for (String dbmName : dbmNameList) {
+				Dbm dbm = Dbm.createLocked(Dbm.createDbmFilePath(dir, dbmName),
+						mode, fileLockSec, filePermission);
+				dbm.setFormat(format);
+				dbmMap.put(dbmName, dbm);
+			}
+			// 並列で読み込み
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			try {
+				List<ForkJoinTask<Void>> taskList = new ArrayList<ForkJoinTask<Void>>();
+				for (final Dbm dbm : dbmMap.values()) {
+					taskList.add(pool.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							dbm.readLockedFile();
+							return null;
+						}
+					}));
+				}
+				// 全件の完了を待ち、最初に発生したExceptionをthrowする
+				Exception error = null;
+				for (ForkJoinTask<Void> task : taskList) {
+					try {
+						task.get();
+					} catch (ExecutionException e) {
+						if (error == null) {
+							error = (e.getCause() instanceof Exception) ? (Exception) e
+									.getCause() : e;
+						}
+					}
+				}
+				if (error != null) {
+					throw error;
+				}
+			} finally {
+				pool.shutdown();
+			}
+		} catch (Exception e) {
+			// 取得済みのロックを解除
+			for (Dbm dbm : dbmMap.values()) {
+				dbm.rollback();
+			}
+			throw e;
+		}
+		// DBMリストに追加
+		for (Dbm dbm : dbmMap.values()) {
+			addDbm(dbm);
+		}
+		return dbmMap;
+	}
+
+	/**
+	 * コンテナ内のDBMをロードする.
+	 * <p>
+	 * 最大ファイルロック待ち秒数はデフォルト値となります.<br>
+	 * パーミッションはコンテナファイル新規作成時に適用されます.
+	 * </p>
+	 *
+	 * @param container
+	 *            DBMを格納する {@link DbmContainer}
+	 * @param dbmName
+	 *            コンテナ内のDBM名
+	 * @param mode
+	 *            {@link DbmMode} クラスの定数で指定.
+	 * @return ロードされた {@link Dbm} オブジェクト
+	 * @throws Exception
+	 *             DBMロード時に例外発生した場合
+	 */
+	public Dbm load(DbmContainer container, String dbmName, DbmMode mode)
+			throws Exception {
+		// DBMのロード
+		Dbm dbm = new Dbm(container, dbmName, mode, fileLockSec,
+				filePermission);
+		dbm.setFormat(format);
+		// DBMリストに追加
+		addDbm(dbm);
+		return dbm;
+	}
+
+	/**
+	 * DBMファイルを一括作成する {@link DbmBulkLoader} を生成する.
+	 * <p>
+	 * 作成されるDBMファイルはブロック形式（{@link DbmFormat#BLOCK}）です.<br>
+	 * {@link #setFormat(DbmFormat)} で {@link DbmFormat#BLOCK_DICTIONARY}
+	 * を指定した場合は辞書付きブロック形式となります.<br>
+	 * 最大ファイルロック秒数とパーミッションはこのDBM接続の設定値となります.
+	 * </p>
+	 *
+	 * @param dir
+	 *            DBMファイルを作成するディレクトリ
+	 * @param dbmName
+	 *            DBM名（ファイル名ではない）
+	 * @return {@link DbmBulkLoader} オブジェクト
+	 */
+	public DbmBulkLoader createBulkLoader(String dir, String dbmName) {
+		return new DbmBulkLoader(Dbm.createDbmFilePath(dir, dbmName),
+				fileLockSec, filePermission,
+				DbmFormat.BLOCK_DICTIONARY.equals(format));
+	}
+
+	/**
+	 * DBMに保存する数値カウンタ {@link DbmCounter} を生成する.
+	 * <p>
+	 * 最大ファイルロック秒数、パーミッション、書込み形式はこのDBM接続の設定値となります.<br>
+	 * DBMファイルが無ければ、初回の反映時に新規作成します.
+	 * </p>
+	 *
+	 * @param dir
+	 *            DBMファイルが存在するディレクトリ
+	 * @param dbmName
+	 *            DBM名（ファイル名ではない）
+	 * @return {@link DbmCounter} オブジェクト
+	 */
+	public DbmCounter createCounter(String dir, String dbmName) {
+		return new DbmCounter(Dbm.createDbmFilePath(dir, dbmName), fileLockSec,
+				filePermission, format);
+	}
+
+	/**
+	 * DBMの全件をキーの昇順にテキストとして出力する.
+	 * <p>
+	 * ブロック形式のDBMファイルはメモリ上に展開せず、ファイルから順次出力します.<br>
+	 * 有効期限切れのレコードは出力しません.<br>
+	 * writerのcloseは呼び出し元で行います.
+	 * </p>
+	 *
+	 * @param dir
+	 *            DBMファイルが存在するディレクトリ
+	 * @param dbmName
+	 *            DBM名（ファイル名ではない）
+	 * @param writer
+	 *            出力先
+	 * @param textFormat
+	 *            {@link DbmTextFormat} クラスの定数で指定.
+	 * @throws Exception
+	 *             DBMファイル読み込み時に例外発生した場合
+	 */
+	public void export(String dir, String dbmName, Writer writer,
+			DbmTextFormat textFormat) throws Exception {
+		Dbm.exportFile(Dbm.createDbmFilePath(dir, dbmName), writer,
+				textFormat, fileLockSec);
+	}
+
+	/**
+	 * DBMファイルの全件を並列処理する {@link Stream} を返す.
+	 * <p>
+	 * DBMをロードせずに読み取り専用で参照します.<br>
+	 * ブロック形式のDBMファイルはメモリ上に展開せず、ブロック単位で分割してファイルから並列に読み込みます.<br>
+	 * 有効期限切れのレコードは含みません.<br>
+	 * ファイルを開いたままとなるため、使用後はStreamをcloseすること.
+	 * </p>
+	 *
+	 * @param dir
+	 *            DBMファイルが存在するディレクトリ
+	 * @param dbmName
+	 *            DBM名（ファイル名ではない）
+	 * @return 全件の並列 {@link Stream}
+	 * @throws Exception
+	 *             DBMファイル読み込み時に例外発生した場合
+	 */
+	public Stream<Map.Entry<String, String>> parallelStream(String dir,
+			String dbmName) throws Exception {
+		return Dbm.streamFile(Dbm.createDbmFilePath(dir, dbmName), fileLockSec);
+	}
+
+	/**
+	 * 破損したDBMファイルを復旧する.
+	 * <p>
+	 * 破損箇所より前の正常なレコードのみでDBMファイルを置き換えます.<br>
+	 * 破損していない場合は何もしません.<br>
+	 * 復旧できるのはブロック形式（{@link DbmFormat#BLOCK}）のDBMファイルのみです.<br>
+	 * 破損の有無は {@link DbmVerifier#verify(String)} で確認できます.
+	 * </p>
+	 *
+	 * @param dir
+	 *            DBMファイルが存在するディレクトリ
+	 * @param dbmName
+	 *            DBM名（ファイル名ではない）
+	 * @return 復旧後のレコード件数
+	 * @throws Exception
+	 *             DBMファイル復旧時に例外発生した場合
+	 */
+	public int recover(String dir, String dbmName) throws Exception {
+		return Dbm.recoverFile(Dbm.createDbmFilePath(dir, dbmName),
+				fileLockSec);
+	}
+
 	/**
 	 * DBMをリストに追加.
 	 *
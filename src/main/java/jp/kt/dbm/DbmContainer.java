@@ -0,0 +1,1083 @@
+package jp.kt.dbm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * 複数のDBMを1ファイルにまとめて格納するコンテナファイル.
+ * <p>
+ * 小さなDBMを大量に扱う場合に、DBMごとのファイルオープンやロックファイル生成を削減するためのものです.<br>
+ * コンテナファイル内の各DBMは {@link DbmConnection#load(DbmContainer, String, DbmMode)}
+ * で個別にロードし、個別にcommitできます.
+ * </p>
+ * <p>
+ * ファイル構成は以下の通りです.
+ * </p>
+ * <ul>
+ * <li>ヘッダ（マジックナンバー、バージョン）
+ * <li>各DBMのデータ（.ktdb ファイルと同じ内容）
+ * <li>DBM名、オフセット、サイズの一覧（ディレクトリ）とチェックサム
+ * <li>トレーラ（ディレクトリのオフセット、サイズ、マジックナンバー）
+ * </ul>
+ * <p>
+ * commit時はDBMのデータと新しいディレクトリをファイル末尾に追記するため、<br>
+ * 読み込み中のDBMのデータが書き換えられることはありません.<br>
+ * 不要になった領域がファイルサイズの半分を超えた場合は、commit時にファイルを再構成します.
+ * </p>
+ * <p>
+ * 追記途中でプロセスが終了した場合は、末尾から遡って最後の有効なトレーラを読み込み、<br>
+ * 次の書き込み時に、それ以降の追記途中の部分を削除します.
+ * </p>
+ * <p>
+ * 再構成時はファイルを置き換えるため、置き換え前に開いていたファイルの内容は変更されません.<br>
+ * 再構成済みのトレーラを追記した後、置き換え前にプロセスが終了した場合は、<br>
+ * 読み込み時はそのトレーラを除いて読み込み、次の書き込み時にそのトレーラを削除します.
+ * </p>
+ * <p>
+ * {@link DbmMode#READ_ONLY} モードのロードでは、ロックファイルの確認は行いません.<br>
+ * 書込み可能モードのロードでは、DBM単位でロックします.
+ * </p>
+ * <p>
+ * 読み込み用のチャネルはコンテナファイルごとに開いたままにし、再構成により置き換えられるまで再利用します.<br>
+ * そのため、このクラスを経由せずにコンテナファイルを置き換えた場合は、置き換え前の内容を読み込み続けます.
+ * </p>
+ *
+ * @author tatsuya.kumon
+ */
+public final class DbmContainer implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** コンテナファイルの拡張子 */
+	static final String CONTAINER_FILE_EXT = ".ktdbc";
+
+	/** ヘッダのマジックナンバー（"KTDC"） */
+	private static final int HEADER_MAGIC = 0x4B544443;
+
+	/** ファイル形式のバージョン */
+	private static final int FORMAT_VERSION = 1;
+
+	/** ヘッダのバイト数 */
+	private static final int HEADER_SIZE = 8;
+
+	/** トレーラのマジックナンバー */
+	private static final int TRAILER_MAGIC = 0x4B544445;
+
+	/** 再構成により別ファイルに置き換えられたことを示すトレーラのマジックナンバー */
+	private static final int MOVED_MAGIC = 0x4B54444D;
+
+	/** トレーラのバイト数 */
+	static final int TRAILER_SIZE = 16;
+
+	/** ディレクトリのチェックサムのバイト数 */
+	private static final int CHECKSUM_SIZE = 4;
+
+	/** 有効なトレーラを末尾から探す際の読み込み単位 */
+	private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+	/** ファイル識別子を取得できない場合に、再構成済みのファイルを開き直す最大回数 */
+	private static final int MAX_REOPEN_TIMES = 10;
+
+	/** 再構成を行う最小ファイルサイズ */
+	private static final long COMPACT_MIN_SIZE = 1024 * 1024;
+
+	/** インポート時に1回の追記でまとめるDBM数 */
+	private static final int IMPORT_BATCH_SIZE = 1000;
+
+	/** プロセス内での排他用オブジェクトのMap（キーはコンテナファイルパス） */
+	private static final ConcurrentHashMap<String, Object> MONITOR_MAP = new ConcurrentHashMap<String, Object>();
+
+	/** ディレクトリのキャッシュ（キーはコンテナファイルパス） */
+	private static final Map<String, Directory> DIRECTORY_CACHE = new ConcurrentHashMap<String, Directory>();
+
+	/** 開いたままにする読み込み用チャネルのMap（キーはコンテナファイルパス） */
+	private static final Map<String, ReadChannel> CHANNEL_CACHE = new ConcurrentHashMap<String, ReadChannel>();
+
+	/** コンテナファイルパス */
+	private final String containerFilePath;
+
+	/**
+	 * コンストラクタ.
+	 * <p>
+	 * コンテナファイルが無い場合は、最初のcommit時に作成されます.
+	 * </p>
+	 *
+	 * @param containerFilePath
+	 *            コンテナファイルパス
+	 */
+	public DbmContainer(String containerFilePath) {
+		this.containerFilePath = containerFilePath;
+	}
+
+	/**
+	 * コンテナファイルパスを返す.
+	 *
+	 * @return コンテナファイルパス
+	 */
+	public String getPath() {
+		return containerFilePath;
+	}
+
+	/**
+	 * コンテナファイルに格納されているDBM名のリストを返します.
+	 * <p>
+	 * DBM名の昇順で返します.
+	 * </p>
+	 *
+	 * @return DBM名のリスト
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	public List<String> getDbmNameList() throws IOException {
+		Directory directory = readDirectory();
+		if (directory == null) {
+			throw new DbmFileNotFoundException(containerFilePath);
+		}
+		return new ArrayList<String>(directory.segmentMap.keySet());
+	}
+
+	/**
+	 * 指定したディレクトリに存在するDBMファイルを、コンテナファイルに取り込みます.
+	 * <p>
+	 * 取り込むDBMは {@link Dbm#getDbmNameList(String)} で検索されたものです.<br>
+	 * 同名のDBMがコンテナファイルに存在する場合は上書きします.<br>
+	 * 取り込み元のDBMファイルは削除しません.
+	 * </p>
+	 *
+	 * @param dir
+	 *            取り込み元のディレクトリ
+	 * @throws Exception
+	 *             DBMファイルのロードに失敗した場合
+	 */
+	public void importDbmFiles(String dir) throws Exception {
+		Map<String, byte[]> batch = new LinkedHashMap<String, byte[]>();
+		for (String dbmName : Dbm.getDbmNameList(dir)) {
+			Dbm dbm = new DbmConnection().load(dir, dbmName, DbmMode.READ_ONLY);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			dbm.writeRecords(out);
+			batch.put(dbmName, out.toByteArray());
+			if (batch.size() >= IMPORT_BATCH_SIZE) {
+				update(batch);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			update(batch);
+		}
+	}
+
+	/**
+	 * 指定したDBMがコンテナファイルに存在するか判定.
+	 *
+	 * @param dbmName
+	 *            DBM名
+	 * @return 存在する場合はtrue
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	boolean exists(String dbmName) throws IOException {
+		Directory directory = readDirectory();
+		return directory != null && directory.segmentMap.containsKey(dbmName);
+	}
+
+	/**
+	 * 指定したDBMのデータを読み込む.
+	 *
+	 * @param dbmName
+	 *            DBM名
+	 * @return DBMのデータ.コンテナファイルもしくはDBMが存在しない場合はnull
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	byte[] readDbm(String dbmName) throws IOException {
+		Path path = Paths.get(containerFilePath);
+		synchronized (monitor()) {
+			for (int times = 1;; times++) {
+				ReadChannel channel = openReadChannel();
+				if (channel == null) {
+					return null;
+				}
+				Directory directory;
+				byte[] data = null;
+				try {
+					FileLock fileLock = channel.ch.lock(0, Long.MAX_VALUE, true);
+					try {
+						directory = readCurrentDirectory(path, channel.ch,
+								channel.fileKey, times);
+						long[] segment = (directory == null) ? null
+								: directory.segmentMap.get(dbmName);
+						if (segment != null) {
+							ByteBuffer buf = ByteBuffer
+									.allocate((int) segment[1]);
+							readFully(channel.ch, buf, segment[0]);
+							data = buf.array();
+						}
+					} finally {
+						fileLock.release();
+					}
+				} catch (IOException e) {
+					closeReadChannel();
+					throw e;
+				}
+				if (directory != null) {
+					return data;
+				}
+				// 再構成済みのため開き直す
+				closeReadChannel();
+			}
+		}
+	}
+
+	/**
+	 * コピーする時点のファイルサイズを返す.
+	 * <p>
+	 * 追記途中の部分を含まないよう共有ロックを取得して、最後の有効なトレーラの終了位置を確認します.<br>
+	 * 追記のみで更新されるため、このサイズまでの内容はコピー中に変更されません.<br>
+	 * ロックはサイズの確認のみで解除し、コピー中は保持しません.<br>
+	 * チャネルを開いてからロックを取得するまでに再構成により置き換えられた場合は、
+	 * 置き換え前のファイルをコピーしないよう-1を返します.
+	 * </p>
+	 *
+	 * @param ch
+	 *            コンテナファイルを開いたチャネル
+	 * @param fileKey
+	 *            チャネルを開く前に取得したファイル識別子
+	 * @param times
+	 *            チャネルを開いた回数
+	 * @return ファイルサイズ.開き直す必要がある場合は-1
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	long snapshotSize(FileChannel ch, Object fileKey, int times)
+			throws IOException {
+		Path path = Paths.get(containerFilePath);
+		synchronized (monitor()) {
+			FileLock fileLock = ch.lock(0, Long.MAX_VALUE, true);
+			try {
+				Directory directory = readCurrentDirectory(path, ch, fileKey,
+						times);
+				return (directory == null) ? -1 : directory.fileSize;
+			} catch (DbmOperationException e) {
+				// 有効なディレクトリが無い場合は、そのままコピーする
+				return ch.size();
+			} finally {
+				fileLock.release();
+			}
+		}
+	}
+
+	/**
+	 * コンテナファイルの構造と、格納されている各DBMのデータを検証する.
+	 * <p>
+	 * 1件目にコンテナファイル自体の検証結果、2件目以降にDBMごとの検証結果をDBM名の昇順で返します.<br>
+	 * DBMごとの検証結果のパスは「コンテナファイルパス#DBM名」となります.<br>
+	 * 有効なディレクトリの確認時のみ共有ロックを取得し、データの検証中は保持しません.
+	 * </p>
+	 *
+	 * @return 検証結果のリスト
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	List<DbmVerifyResult> verify() throws IOException {
+		Path path = Paths.get(containerFilePath);
+		List<DbmVerifyResult> resultList = new ArrayList<DbmVerifyResult>();
+		for (int times = 1;; times++) {
+			if (!Files.isRegularFile(path)) {
+				throw new DbmFileNotFoundException(containerFilePath);
+			}
+			Object fileKey = fileKey(path);
+			FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+			try {
+				long size;
+				Directory directory;
+				synchronized (monitor()) {
+					FileLock fileLock = ch.lock(0, Long.MAX_VALUE, true);
+					try {
+						size = ch.size();
+						directory = readCurrentDirectory(path, ch, fileKey,
+								times);
+					} catch (DbmOperationException e) {
+						// 有効なディレクトリが無い
+						resultList.add(new DbmVerifyResult(containerFilePath, 0,
+								false, true, e.getMessage()));
+						return resultList;
+					} finally {
+						fileLock.release();
+					}
+				}
+				if (directory == null) {
+					// 再構成済みのため開き直す
+					continue;
+				}
+				// コンテナファイル自体の検証結果
+				if (directory.fileSize < size) {
+					resultList.add(new DbmVerifyResult(containerFilePath,
+							directory.segmentMap.size(), false, false,
+							"有効なトレーラ以降に不要なデータがあります（"
+									+ (size - directory.fileSize) + "バイト）"));
+				} else {
+					resultList.add(new DbmVerifyResult(containerFilePath,
+							directory.segmentMap.size(), true, false, null));
+				}
+				// DBMごとの検証結果
+				for (Map.Entry<String, long[]> entry : directory.segmentMap
+						.entrySet()) {
+					long[] segment = entry.getValue();
+					ByteBuffer buf = ByteBuffer.allocate((int) segment[1]);
+					readFully(ch, buf, segment[0]);
+					resultList.add(DbmVerifier.verifyStream(containerFilePath
+							+ "#" + entry.getKey(), new ByteArrayInputStream(
+							buf.array())));
+				}
+				return resultList;
+			} finally {
+				ch.close();
+			}
+		}
+	}
+
+	/**
+	 * 指定したDBMのデータを書き込む.
+	 *
+	 * @param dbmName
+	 *            DBM名
+	 * @param data
+	 *            DBMのデータ
+	 * @return コンテナファイルを新規作成した場合はtrue
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	boolean writeDbm(String dbmName, byte[] data) throws IOException {
+		Map<String, byte[]> map = new LinkedHashMap<String, byte[]>();
+		map.put(dbmName, data);
+		return update(map);
+	}
+
+	/**
+	 * 指定したDBMをコンテナファイルから削除する.
+	 *
+	 * @param dbmName
+	 *            DBM名
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	void dropDbm(String dbmName) throws IOException {
+		if (!Files.isRegularFile(Paths.get(containerFilePath))) {
+			return;
+		}
+		Map<String, byte[]> map = new LinkedHashMap<String, byte[]>();
+		map.put(dbmName, null);
+		update(map);
+	}
+
+	/**
+	 * DBMのデータの追記と削除を行う.
+	 * <p>
+	 * DBMのデータ、新しいディレクトリ、トレーラの順にファイル末尾へ追記します.<br>
+	 * 最後の有効なトレーラ以降に、再構成済みのトレーラや追記途中の部分があれば、追記前に削除します.<br>
+	 * 処理中はコンテナファイルを排他ロックします.
+	 * </p>
+	 *
+	 * @param dataMap
+	 *            DBM名と書き込むデータのMap.値がnullの場合はそのDBMを削除する
+	 * @return コンテナファイルを新規作成した場合はtrue
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private boolean update(Map<String, byte[]> dataMap) throws IOException {
+		Path path = Paths.get(containerFilePath);
+		for (int times = 1;; times++) {
+			synchronized (monitor()) {
+				Object fileKey = fileKey(path);
+				FileChannel ch = FileChannel.open(path, StandardOpenOption.READ,
+						StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+				try {
+					FileLock fileLock = ch.lock();
+					try {
+						boolean isNewFile = ch.size() == 0;
+						Directory directory;
+						if (isNewFile) {
+							// ヘッダ出力
+							ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+							header.putInt(HEADER_MAGIC).putInt(FORMAT_VERSION);
+							header.flip();
+							writeFully(ch, header, 0);
+							directory = new Directory();
+						} else {
+							directory = readDirectory(ch);
+							if (directory == null) {
+								if (isReplaced(path, fileKey, times)) {
+									// 再構成済みのため開き直す
+									continue;
+								}
+								// 再構成が中断されたファイルは、再構成済みのトレーラを除いて読み込む
+								directory = readDirectory(ch, ch.size()
+										- TRAILER_SIZE);
+							}
+							if (directory.fileSize < ch.size()) {
+								// 有効なトレーラ以降を削除する
+								ch.truncate(directory.fileSize);
+							}
+							directory = new Directory(directory);
+						}
+						// DBMのデータを追記
+						long position = ch.size();
+						for (Map.Entry<String, byte[]> entry : dataMap.entrySet()) {
+							byte[] data = entry.getValue();
+							if (data == null) {
+								directory.segmentMap.remove(entry.getKey());
+								continue;
+							}
+							writeFully(ch, ByteBuffer.wrap(data), position);
+							directory.segmentMap.put(entry.getKey(), new long[] {
+									position, data.length });
+							position += data.length;
+						}
+						// ディレクトリとトレーラを追記
+						writeDirectory(ch, directory, position);
+						if (needsCompaction(ch.size(), directory)) {
+							compact(path, ch, directory);
+						} else {
+							cacheDirectory(ch, directory);
+						}
+						return isNewFile;
+					} finally {
+						fileLock.release();
+					}
+				} finally {
+					ch.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * ディレクトリを読み込む.
+	 *
+	 * @return ディレクトリ.コンテナファイルが存在しない場合はnull
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private Directory readDirectory() throws IOException {
+		Path path = Paths.get(containerFilePath);
+		synchronized (monitor()) {
+			for (int times = 1;; times++) {
+				ReadChannel channel = openReadChannel();
+				if (channel == null) {
+					return null;
+				}
+				Directory directory;
+				try {
+					FileLock fileLock = channel.ch.lock(0, Long.MAX_VALUE, true);
+					try {
+						directory = readCurrentDirectory(path, channel.ch,
+								channel.fileKey, times);
+					} finally {
+						fileLock.release();
+					}
+				} catch (IOException e) {
+					closeReadChannel();
+					throw e;
+				}
+				if (directory != null) {
+					return directory;
+				}
+				// 再構成済みのため開き直す
+				closeReadChannel();
+			}
+		}
+	}
+
+	/**
+	 * 読み込み用のチャネルを返す.
+	 * <p>
+	 * 開いたチャネルはコンテナファイルごとに保持し、以降の読み込みで再利用します.<br>
+	 * プロセス内での排他用オブジェクトで排他した状態で呼び出します.
+	 * </p>
+	 *
+	 * @return 読み込み用のチャネル.コンテナファイルが存在しない場合はnull
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private ReadChannel openReadChannel() throws IOException {
+		ReadChannel channel = CHANNEL_CACHE.get(containerFilePath);
+		if (channel != null) {
+			return channel;
+		}
+		Path path = Paths.get(containerFilePath);
+		if (!Files.isRegularFile(path)) {
+			return null;
+		}
+		Object fileKey = fileKey(path);
+		FileChannel ch;
+		try {
+			ch = FileChannel.open(path, StandardOpenOption.READ);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		channel = new ReadChannel(ch, fileKey);
+		CHANNEL_CACHE.put(containerFilePath, channel);
+		return channel;
+	}
+
+	/**
+	 * 保持している読み込み用のチャネルを閉じる.
+	 * <p>
+	 * 再構成により置き換えられた場合と、読み込みに失敗した場合に、次の読み込みで開き直すために閉じます.<br>
+	 * プロセス内での排他用オブジェクトで排他した状態で呼び出します.
+	 * </p>
+	 *
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private void closeReadChannel() throws IOException {
+		ReadChannel channel = CHANNEL_CACHE.remove(containerFilePath);
+		if (channel != null) {
+			channel.ch.close();
+		}
+	}
+
+	/**
+	 * 読み込み用にロックしたファイルのディレクトリを読み込む.
+	 * <p>
+	 * 再構成済みのトレーラがあり、別ファイルに置き換えられていない場合は、<br>
+	 * 再構成が中断されたファイルとして、そのトレーラを除いて読み込みます.
+	 * </p>
+	 *
+	 * @param path
+	 *            コンテナファイルパス
+	 * @param ch
+	 *            ロック済みのチャネル
+	 * @param fileKey
+	 *            ファイルを開く前に取得したファイル識別子
+	 * @param times
+	 *            ファイルを開いた回数
+	 * @return ディレクトリ.別ファイルに置き換えられていて、開き直す必要がある場合はnull
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private Directory readCurrentDirectory(Path path, FileChannel ch,
+			Object fileKey, int times) throws IOException {
+		Directory directory = readDirectory(ch);
+		if (directory != null) {
+			return directory;
+		}
+		if (isReplaced(path, fileKey, times)) {
+			return null;
+		}
+		return readDirectory(ch, ch.size() - TRAILER_SIZE);
+	}
+
+	/**
+	 * 再構成済みのトレーラを持つファイルが、別ファイルに置き換えられているか判定.
+	 * <p>
+	 * 再構成はトレーラの追記から置き換えまで排他ロックを保持するため、<br>
+	 * ロック取得後に置き換えられていなければ、再構成が中断されたファイルです.<br>
+	 * ファイル識別子を取得できない場合は、一定回数まで置き換えられているものとして扱います.
+	 * </p>
+	 *
+	 * @param path
+	 *            コンテナファイルパス
+	 * @param fileKey
+	 *            ファイルを開く前に取得したファイル識別子
+	 * @param times
+	 *            ファイルを開いた回数
+	 * @return 置き換えられている場合はtrue
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private static boolean isReplaced(Path path, Object fileKey, int times)
+			throws IOException {
+		Object currentFileKey = fileKey(path);
+		if (fileKey != null && currentFileKey != null) {
+			return !fileKey.equals(currentFileKey);
+		}
+		return times < MAX_REOPEN_TIMES;
+	}
+
+	/**
+	 * ファイル識別子を取得する.
+	 *
+	 * @param path
+	 *            ファイルパス
+	 * @return ファイル識別子.ファイルが存在しないか、取得できない場合はnull
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private static Object fileKey(Path path) throws IOException {
+		try {
+			return Files.readAttributes(path, BasicFileAttributes.class)
+					.fileKey();
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * ディレクトリを読み込む.
+	 *
+	 * @param ch
+	 *            ロック済みのチャネル
+	 * @return ディレクトリ.再構成済みのトレーラがある場合はnull
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private Directory readDirectory(FileChannel ch) throws IOException {
+		long size = ch.size();
+		if (size >= HEADER_SIZE + TRAILER_SIZE) {
+			ByteBuffer magic = ByteBuffer.allocate(4);
+			readFully(ch, magic, size - 4);
+			magic.flip();
+			if (magic.getInt() == MOVED_MAGIC) {
+				return null;
+			}
+		}
+		return readDirectory(ch, size);
+	}
+
+	/**
+	 * 指定した位置以前の、最後の有効なトレーラからディレクトリを読み込む.
+	 * <p>
+	 * 指定した位置で終わるトレーラが有効でない場合は、追記途中でプロセスが終了したものとして、<br>
+	 * 末尾から遡って有効なトレーラを探します.<br>
+	 * 返すディレクトリのファイルサイズは、読み込んだトレーラの終了位置となります.
+	 * </p>
+	 *
+	 * @param ch
+	 *            ロック済みのチャネル
+	 * @param size
+	 *            トレーラの終了位置
+	 * @return ディレクトリ
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private Directory readDirectory(FileChannel ch, long size)
+			throws IOException {
+		Directory directory = readDirectoryAt(ch, size);
+		if (directory != null) {
+			return directory;
+		}
+		// 追記途中でプロセスが終了した場合は、末尾から遡って有効なトレーラを探す
+		long position = size - 4;
+		while ((position = findTrailerMagic(ch, position)) >= 0) {
+			directory = readDirectoryAt(ch, position + 4);
+			if (directory != null) {
+				return directory;
+			}
+		}
+		throw new DbmOperationException("コンテナファイルが不正です", containerFilePath);
+	}
+
+	/**
+	 * ヘッダのマジックナンバーとファイル形式のバージョンを確認する.
+	 *
+	 * @param ch
+	 *            ロック済みのチャネル
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private void checkHeader(FileChannel ch) throws IOException {
+		if (ch.size() < HEADER_SIZE) {
+			throw new DbmOperationException("コンテナファイルが不正です", containerFilePath);
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(ch, header, 0);
+		header.flip();
+		int magic = header.getInt();
+		int version = header.getInt();
+		if (magic != HEADER_MAGIC || version != FORMAT_VERSION) {
+			throw new DbmOperationException("コンテナファイルが不正です", containerFilePath);
+		}
+	}
+
+	/**
+	 * 指定した位置で終わるトレーラからディレクトリを読み込む.
+	 * <p>
+	 * トレーラの内容とディレクトリのチェックサムがキャッシュと一致する場合はキャッシュを返します.<br>
+	 * 他プロセスが再構成したファイルでも終了位置とオフセットが一致し得るため、チェックサムも比較します.<br>
+	 * ヘッダはキャッシュと一致しない場合のみ確認します.
+	 * </p>
+	 *
+	 * @param ch
+	 *            ロック済みのチャネル
+	 * @param size
+	 *            トレーラの終了位置
+	 * @return ディレクトリ.トレーラもしくはディレクトリが有効でない場合はnull
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private Directory readDirectoryAt(FileChannel ch, long size)
+			throws IOException {
+		if (size < HEADER_SIZE + 4 + CHECKSUM_SIZE + TRAILER_SIZE) {
+			return null;
+		}
+		// ディレクトリのチェックサムとトレーラ読み込み
+		ByteBuffer trailer = ByteBuffer.allocate(CHECKSUM_SIZE + TRAILER_SIZE);
+		readFully(ch, trailer, size - CHECKSUM_SIZE - TRAILER_SIZE);
+		trailer.flip();
+		int checksum = trailer.getInt();
+		long directoryOffset = trailer.getLong();
+		int directoryLength = trailer.getInt();
+		int magic = trailer.getInt();
+		if (magic != TRAILER_MAGIC || directoryOffset < HEADER_SIZE
+				|| directoryLength < 4 + CHECKSUM_SIZE
+				|| directoryOffset + directoryLength != size - TRAILER_SIZE) {
+			return null;
+		}
+		// キャッシュが有効であればキャッシュを返す
+		Directory cache = DIRECTORY_CACHE.get(containerFilePath);
+		if (cache != null && cache.fileSize == size
+				&& cache.directoryOffset == directoryOffset
+				&& cache.checksum == checksum) {
+			return cache;
+		}
+		checkHeader(ch);
+		// ディレクトリ読み込み
+		ByteBuffer buf = ByteBuffer.allocate(directoryLength);
+		readFully(ch, buf, directoryOffset);
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), 0, directoryLength - CHECKSUM_SIZE);
+		crc.update(trailer.array(), CHECKSUM_SIZE, TRAILER_SIZE - 4);
+		if ((int) crc.getValue() != checksum) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				buf.array(), 0, directoryLength - CHECKSUM_SIZE));
+		Directory directory = new Directory();
+		try {
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String dbmName = in.readUTF();
+				long offset = in.readLong();
+				long length = in.readInt();
+				if (offset < HEADER_SIZE || length < 0
+						|| offset + length > directoryOffset) {
+					return null;
+				}
+				directory.segmentMap.put(dbmName, new long[] { offset, length });
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		directory.fileSize = size;
+		directory.directoryOffset = directoryOffset;
+		directory.checksum = checksum;
+		DIRECTORY_CACHE.put(containerFilePath, directory);
+		return directory;
+	}
+
+	/**
+	 * 指定した位置より前にある、トレーラのマジックナンバーの位置を末尾側から探す.
+	 *
+	 * @param ch
+	 *            ロック済みのチャネル
+	 * @param before
+	 *            検索終了位置（この位置は含まない）
+	 * @return マジックナンバーの位置.見つからない場合は-1
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private static long findTrailerMagic(FileChannel ch, long before)
+			throws IOException {
+		// 最初のトレーラのマジックナンバーが置かれ得る位置
+		long limit = HEADER_SIZE + TRAILER_SIZE - 4;
+		// 読み込み範囲の終了位置（この位置は含まない）
+		long end = before + 3;
+		while (end - 4 >= limit) {
+			long start = Math.max(limit, end - SCAN_BUFFER_SIZE);
+			ByteBuffer buf = ByteBuffer.allocate((int) (end - start));
+			readFully(ch, buf, start);
+			for (int i = buf.capacity() - 4; i >= 0; i--) {
+				if (buf.getInt(i) == TRAILER_MAGIC) {
+					return start + i;
+				}
+			}
+			// 読み込み範囲の境界をまたぐマジックナンバーも探せるよう、3バイト重ねる
+			end = start + 3;
+		}
+		return -1;
+	}
+
+	/**
+	 * ディレクトリとトレーラを書き込む.
+	 * <p>
+	 * チェックサムはディレクトリと、トレーラのオフセットおよびサイズを対象とします.
+	 * </p>
+	 *
+	 * @param ch
+	 *            ロック済みのチャネル
+	 * @param directory
+	 *            ディレクトリ
+	 * @param position
+	 *            書き込み位置
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private static void writeDirectory(FileChannel ch, Directory directory,
+			long position) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		out.writeInt(directory.segmentMap.size());
+		for (Map.Entry<String, long[]> entry : directory.segmentMap.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeLong(entry.getValue()[0]);
+			out.writeInt((int) entry.getValue()[1]);
+		}
+		// トレーラ
+		ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+		trailer.putLong(position).putInt(baos.size() + CHECKSUM_SIZE)
+				.putInt(TRAILER_MAGIC);
+		// チェックサム
+		CRC32 crc = new CRC32();
+		crc.update(baos.toByteArray());
+		crc.update(trailer.array(), 0, TRAILER_SIZE - 4);
+		out.writeInt((int) crc.getValue());
+		out.write(trailer.array());
+		out.flush();
+		writeFully(ch, ByteBuffer.wrap(baos.toByteArray()), position);
+		directory.directoryOffset = position;
+		directory.checksum = (int) crc.getValue();
+	}
+
+	/**
+	 * 書き込み後のディレクトリをキャッシュする.
+	 *
+	 * @param ch
+	 *            ロック済みのチャネル
+	 * @param directory
+	 *            ディレクトリ
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private void cacheDirectory(FileChannel ch, Directory directory)
+			throws IOException {
+		directory.fileSize = ch.size();
+		DIRECTORY_CACHE.put(containerFilePath, directory);
+	}
+
+	/**
+	 * 再構成が必要か判定.
+	 *
+	 * @param fileSize
+	 *            ファイルサイズ
+	 * @param directory
+	 *            ディレクトリ
+	 * @return 不要な領域がファイルサイズの半分を超えている場合はtrue
+	 */
+	private static boolean needsCompaction(long fileSize, Directory directory) {
+		if (fileSize < COMPACT_MIN_SIZE) {
+			return false;
+		}
+		long liveSize = 0;
+		for (long[] segment : directory.segmentMap.values()) {
+			liveSize += segment[1];
+		}
+		return liveSize * 2 < fileSize;
+	}
+
+	/**
+	 * コンテナファイルを再構成する.
+	 * <p>
+	 * 有効なDBMのデータのみを一時ファイルにコピーし、コンテナファイルと置き換えます.<br>
+	 * 置き換え前のファイルには再構成済みを示すトレーラを追記し、<br>
+	 * ロック待ちをしていた他プロセスがファイルを開き直すようにします.
+	 * </p>
+	 *
+	 * @param path
+	 *            コンテナファイルパス
+	 * @param ch
+	 *            ロック済みのチャネル
+	 * @param directory
+	 *            ディレクトリ
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private void compact(Path path, FileChannel ch, Directory directory)
+			throws IOException {
+		Path tmpPath = Paths.get(containerFilePath + ".tmp");
+		Directory newDirectory = new Directory();
+		FileChannel tmp = FileChannel.open(tmpPath, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(HEADER_MAGIC).putInt(FORMAT_VERSION);
+			header.flip();
+			writeFully(tmp, header, 0);
+			long position = HEADER_SIZE;
+			for (Map.Entry<String, long[]> entry : directory.segmentMap.entrySet()) {
+				long[] segment = entry.getValue();
+				long copied = 0;
+				while (copied < segment[1]) {
+					tmp.position(position + copied);
+					copied += ch.transferTo(segment[0] + copied, segment[1]
+							- copied, tmp);
+				}
+				newDirectory.segmentMap.put(entry.getKey(), new long[] {
+						position, segment[1] });
+				position += segment[1];
+			}
+			writeDirectory(tmp, newDirectory, position);
+			newDirectory.fileSize = tmp.size();
+			// 置き換え前にディスクに書き込む
+			tmp.force(true);
+		} finally {
+			tmp.close();
+		}
+		// パーミッションを引き継ぐ
+		try {
+			Files.setPosixFilePermissions(tmpPath,
+					Files.getPosixFilePermissions(path));
+		} catch (UnsupportedOperationException e) {
+			// POSIX非対応のファイルシステムの場合は何もしない
+		}
+		// 置き換え前のファイルに再構成済みのトレーラを追記
+		ByteBuffer moved = ByteBuffer.allocate(TRAILER_SIZE);
+		moved.putLong(0).putInt(0).putInt(MOVED_MAGIC);
+		moved.flip();
+		writeFully(ch, moved, ch.size());
+		// ファイル置き換え
+		Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		DIRECTORY_CACHE.put(containerFilePath, newDirectory);
+	}
+
+	/**
+	 * プロセス内での排他用オブジェクトを返す.
+	 * <p>
+	 * 同一プロセス内で同じファイルを重複してロックできないため、ファイルロックの前に排他する.
+	 * </p>
+	 *
+	 * @return 排他用オブジェクト
+	 */
+	private Object monitor() {
+		Object monitor = MONITOR_MAP.get(containerFilePath);
+		if (monitor == null) {
+			Object newMonitor = new Object();
+			monitor = MONITOR_MAP.putIfAbsent(containerFilePath, newMonitor);
+			if (monitor == null) {
+				monitor = newMonitor;
+			}
+		}
+		return monitor;
+	}
+
+	/**
+	 * 指定位置からバッファが一杯になるまで読み込む.
+	 *
+	 * @param ch
+	 *            チャネル
+	 * @param buf
+	 *            バッファ
+	 * @param position
+	 *            読み込み位置
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	static void readFully(FileChannel ch, ByteBuffer buf, long position)
+			throws IOException {
+		while (buf.hasRemaining()) {
+			int n = ch.read(buf, position);
+			if (n < 0) {
+				throw new IOException("コンテナファイルの終端に達しました");
+			}
+			position += n;
+		}
+	}
+
+	/**
+	 * 指定位置にバッファの内容を全て書き込む.
+	 *
+	 * @param ch
+	 *            チャネル
+	 * @param buf
+	 *            バッファ
+	 * @param position
+	 *            書き込み位置
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private static void writeFully(FileChannel ch, ByteBuffer buf,
+			long position) throws IOException {
+		while (buf.hasRemaining()) {
+			position += ch.write(buf, position);
+		}
+	}
+
+	/**
+	 * コンテナファイルのディレクトリ.
+	 */
+	private static final class Directory {
+		/** DBM名と、データのオフセットおよびサイズのMap */
+		private final TreeMap<String, long[]> segmentMap;
+
+		/** 読み込み時のファイルサイズ（有効なトレーラの終了位置） */
+		private long fileSize;
+
+		/** ディレクトリのオフセット */
+		private long directoryOffset;
+
+		/** ディレクトリのチェックサム */
+		private int checksum;
+
+		/**
+		 * コンストラクタ.
+		 */
+		private Directory() {
+			this.segmentMap = new TreeMap<String, long[]>();
+		}
+
+		/**
+		 * コピーコンストラクタ.
+		 *
+		 * @param directory
+		 *            コピー元
+		 */
+		private Directory(Directory directory) {
+			this.segmentMap = new TreeMap<String, long[]>(directory.segmentMap);
+		}
+	}
+
+	/**
+	 * 開いたままにする読み込み用チャネル.
+	 */
+	private static final class ReadChannel {
+		/** チャネル */
+		private final FileChannel ch;
+
+		/** チャネルを開く前に取得したファイル識別子 */
+		private final Object fileKey;
+
+		/**
+		 * コンストラクタ.
+		 *
+		 * @param ch
+		 *            チャネル
+		 * @param fileKey
+		 *            チャネルを開く前に取得したファイル識別子
+		 */
+		private ReadChannel(FileChannel ch, Object fileKey) {
+			this.ch = ch;
+			this.fileKey = fileKey;
+		}
+	}
+}
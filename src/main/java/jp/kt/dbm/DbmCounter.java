@@ -0,0 +1,474 @@
+package jp.kt.dbm;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import jp.kt.fileio.FileUtil;
+
+/**
+ * DBMに保存する数値カウンタ.
+ * <p>
+ * {@link #increment(String, long)} はDBMファイルをロックせず、メモリ上で加算します.<br>
+ * 複数スレッドから同時に加算しても、キーごとの {@link LongAdder} で競合を分散するためブロックしません（クローズ中を除く）.<br>
+ * 加算値は一定間隔、もしくは一定回数ごとにまとめてDBMファイルに反映（flush）します.<br>
+ * 反映時はDBMファイルをロックし、DBMファイル上の値に未反映の加算値を加えて書き込むため、<br>
+ * 複数プロセスから同じDBMファイルのカウンタを加算しても値は失われません.
+ * </p>
+ * <p>
+ * カウンタの値は10進数の文字列としてDBMに保存されます.<br>
+ * 未反映の加算値はプロセス終了時に失われるため、確実に保存する場合は {@link #flush()} を実行すること.<br>
+ * 使い終わったら {@link #close()} を実行すること.
+ * </p>
+ * <p>
+ * 一定間隔もしくは一定回数ごとの反映に失敗した場合、未反映の加算値は次回の反映に持ち越され、<br>
+ * 反映に成功するまでの間は {@link #increment(String, long)} が例外をthrowします.
+ * </p>
+ *
+ * @author tatsuya.kumon
+ */
+public final class DbmCounter {
+	/** デフォルトの反映間隔ミリ秒数 */
+	private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+	/** デフォルトの反映する加算回数 */
+	private static final int DEFAULT_FLUSH_THRESHOLD = 10000;
+
+	/** DBMファイルパス */
+	private final String dbmFilePath;
+
+	/** 最大ファイルロック秒数 */
+	private final int fileLockSec;
+
+	/** DBMファイルのパーミッション */
+	private final String filePermission;
+
+	/** DBMファイルの書込み形式 */
+	private final DbmFormat format;
+
+	/** キーごとの累計加算値 */
+	private final ConcurrentHashMap<String, LongAdder> adderMap;
+
+	/** キーごとの、反映時のDBMファイル上の値と反映済みの累計加算値 */
+	private final ConcurrentHashMap<String, long[]> flushedMap;
+
+	/** 反映前のキーの値を読み込む際に、数値でなかった値のMap */
+	private final Map<String, String> invalidValueMap;
+
+	/** 反映前のキーの値をDBMファイルから読み込み済みか */
+	private boolean isStoredLoaded;
+
+	/** 前回の反映以降の加算回数 */
+	private final LongAdder unflushedCount;
+
+	/** 反映の実行予約済みか */
+	private final AtomicBoolean isFlushScheduled;
+
+	/** 反映間隔ミリ秒数 */
+	private long flushIntervalMillis;
+
+	/** 反映する加算回数 */
+	private int flushThreshold;
+
+	/** 反映を行うスレッドの起動用のロック */
+	private final Object executorLock;
+
+	/** 反映を行うスレッド（未起動の場合はnull） */
+	private volatile ScheduledExecutorService executor;
+
+	/** クローズ済みか */
+	private volatile boolean isClosed;
+
+	/** 加算とクローズの排他用のロック（加算は読み取りロック、クローズは書き込みロック） */
+	private final ReadWriteLock closeLock;
+
+	/** 反映を行うスレッドでの最後の反映失敗時の例外（反映に成功した場合はnull） */
+	private volatile Exception lastFailure;
+
+	/**
+	 * コンストラクタ.
+	 *
+	 * @param dbmFilePath
+	 *            DBMファイルパス
+	 * @param fileLockSec
+	 *            最大ファイルロック秒数
+	 * @param filePermission
+	 *            ファイルパーミッション.<br>
+	 *            3桁数字で指定する
+	 * @param format
+	 *            DBMファイルの書込み形式
+	 */
+	DbmCounter(String dbmFilePath, int fileLockSec, String filePermission,
+			DbmFormat format) {
+		this.dbmFilePath = dbmFilePath;
+		this.fileLockSec = fileLockSec;
+		this.filePermission = filePermission;
+		this.format = format;
+		this.adderMap = new ConcurrentHashMap<String, LongAdder>();
+		this.flushedMap = new ConcurrentHashMap<String, long[]>();
+		this.invalidValueMap = new HashMap<String, String>();
+		this.unflushedCount = new LongAdder();
+		this.isFlushScheduled = new AtomicBoolean();
+		this.executorLock = new Object();
+		this.closeLock = new ReentrantReadWriteLock();
+		this.flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+		this.flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+	}
+
+	/**
+	 * DBMファイルへの反映間隔を指定する.
+	 * <p>
+	 * デフォルトは1000ミリ秒.0以下の場合は一定間隔での反映を行いません.<br>
+	 * incrementメソッドよりも前に実行すること.
+	 * </p>
+	 *
+	 * @param flushIntervalMillis
+	 *            反映間隔ミリ秒数
+	 */
+	public void setFlushIntervalMillis(long flushIntervalMillis) {
+		this.flushIntervalMillis = flushIntervalMillis;
+	}
+
+	/**
+	 * DBMファイルに反映する加算回数を指定する.
+	 * <p>
+	 * 前回の反映以降の加算回数がこの回数に達した時点で反映を行います.<br>
+	 * デフォルトは10000回.0以下の場合は加算回数による反映を行いません.
+	 * </p>
+	 *
+	 * @param flushThreshold
+	 *            反映する加算回数
+	 */
+	public void setFlushThreshold(int flushThreshold) {
+		this.flushThreshold = flushThreshold;
+	}
+
+	/**
+	 * カウンタに加算する.
+	 * <p>
+	 * DBMファイルへはまとめて反映されます.<br>
+	 * 減算する場合は負数を指定します.<br>
+	 * 一定間隔もしくは一定回数ごとの反映に失敗している場合は、加算せずに
+	 * {@link DbmOperationException} をthrowします（原因の例外を保持します）.
+	 * </p>
+	 *
+	 * @param key
+	 *            キー
+	 * @param delta
+	 *            加算値
+	 */
+	public void increment(String key, long delta) {
+		// クローズ後の最終的な反映より後に加算されないよう、クローズと排他する
+		closeLock.readLock().lock();
+		try {
+			if (isClosed) {
+				throw new DbmOperationException("既にこのカウンタはクローズ済みです",
+						dbmFilePath, key);
+			}
+			Exception failure = lastFailure;
+			if (failure != null) {
+				DbmOperationException ex = new DbmOperationException(
+						"カウンタのDBMファイルへの反映に失敗しています", dbmFilePath, key);
+				ex.initCause(failure);
+				throw ex;
+			}
+			LongAdder adder = adderMap.get(key);
+			if (adder == null) {
+				LongAdder newAdder = new LongAdder();
+				adder = adderMap.putIfAbsent(key, newAdder);
+				if (adder == null) {
+					adder = newAdder;
+				}
+			}
+			adder.add(delta);
+			unflushedCount.increment();
+			ScheduledExecutorService executor = getExecutor();
+			if (flushThreshold > 0 && unflushedCount.sum() >= flushThreshold
+					&& isFlushScheduled.compareAndSet(false, true)) {
+				// 加算回数に達したら反映
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						isFlushScheduled.set(false);
+						flushQuietly();
+					}
+				});
+			}
+		} finally {
+			closeLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * カウンタの値を取得する.
+	 * <p>
+	 * 前回の反映時のDBMファイル上の値に、未反映の加算値を加えた値を返します.<br>
+	 * 反映以降に他プロセスが加算した値は、次回の反映まで含まれません.<br>
+	 * 反映前のキーは、初回のみDBMファイルから全キーの値をまとめて読み込みます.<br>
+	 * DBMファイルにキーが存在しない場合は0として扱います.
+	 * </p>
+	 *
+	 * @param key
+	 *            キー
+	 * @return カウンタの値
+	 * @throws Exception
+	 *             DBMファイル読み込み時に例外発生した場合
+	 */
+	public long get(String key) throws Exception {
+		long[] flushed = flushedMap.get(key);
+		if (flushed == null) {
+			flushed = readStored(key);
+		}
+		long value = flushed[0];
+		LongAdder adder = adderMap.get(key);
+		if (adder != null) {
+			value += adder.sum() - flushed[1];
+		}
+		return value;
+	}
+
+	/**
+	 * 反映前のキーの値を返す.
+	 * <p>
+	 * 初回のみDBMファイルをロードし、反映前の全キーの値をまとめて保持します.<br>
+	 * 以降に値を保持していないキーは、読み込み時にDBMファイルに存在しなかったものとして0を返します.<br>
+	 * 反映と競合しないよう、反映と同じロックで読み込みます.
+	 * </p>
+	 *
+	 * @param key
+	 *            キー
+	 * @return DBMファイル上の値と反映済みの累計加算値（0）
+	 * @throws Exception
+	 *             DBMファイル読み込み時に例外発生した場合
+	 */
+	private synchronized long[] readStored(String key) throws Exception {
+		if (!isStoredLoaded) {
+			loadStored();
+		}
+		long[] flushed = flushedMap.get(key);
+		if (flushed != null) {
+			// 読み込み済み、もしくは待機中に反映された
+			return flushed;
+		}
+		String invalidValue = invalidValueMap.get(key);
+		if (invalidValue != null) {
+			// 数値でない値の例外をthrowする
+			parse(key, invalidValue);
+		}
+		flushed = new long[] { 0, 0 };
+		flushedMap.put(key, flushed);
+		return flushed;
+	}
+
+	/**
+	 * DBMファイルをロードし、反映前の全キーの値を保持する.
+	 * <p>
+	 * 反映済みのキーは反映時の値を優先します.<br>
+	 * 数値でない値は、そのキーの値を取得する際に例外をthrowするよう別に保持します.
+	 * </p>
+	 *
+	 * @throws Exception
+	 *             DBMファイル読み込み時に例外発生した場合
+	 */
+	private void loadStored() throws Exception {
+		if (new FileUtil(dbmFilePath).isFile()) {
+			Dbm dbm = new Dbm(dbmFilePath, DbmMode.READ_ONLY, fileLockSec,
+					filePermission);
+			for (Map.Entry<String, String> entry : dbm.readAll().entrySet()) {
+				String key = entry.getKey();
+				long value;
+				try {
+					value = parse(key, entry.getValue());
+				} catch (DbmOperationException e) {
+					invalidValueMap.put(key, entry.getValue());
+					continue;
+				}
+				flushedMap.putIfAbsent(key, new long[] { value, 0 });
+			}
+		}
+		isStoredLoaded = true;
+	}
+
+	/**
+	 * 未反映の加算値をDBMファイルに反映する.
+	 * <p>
+	 * DBMファイルをロックし、DBMファイル上の値に未反映の加算値を加えてcommitします.<br>
+	 * 反映に失敗した場合、未反映の加算値は次回の反映時に持ち越されます.<br>
+	 * 反映に成功した場合は、一定間隔もしくは一定回数ごとの反映の失敗状態を解除します.
+	 * </p>
+	 *
+	 * @throws Exception
+	 *             DBMファイル書き込み時に例外発生した場合
+	 */
+	public synchronized void flush() throws Exception {
+		// 反映対象とする加算回数（反映中の加算は次回の反映で数える）
+		long count = unflushedCount.sum();
+		// 前回の反映以降の加算値
+		Map<String, Long> deltaMap = new HashMap<String, Long>();
+		Map<String, Long> sumMap = new HashMap<String, Long>();
+		for (Map.Entry<String, LongAdder> entry : adderMap.entrySet()) {
+			long sum = entry.getValue().sum();
+			long delta = sum - getFlushed(entry.getKey());
+			if (delta != 0) {
+				deltaMap.put(entry.getKey(), delta);
+				sumMap.put(entry.getKey(), sum);
+			}
+		}
+		if (!deltaMap.isEmpty()) {
+			// DBMファイルに反映
+			Map<String, Long> valueMap = new HashMap<String, Long>();
+			Dbm dbm = new Dbm(dbmFilePath, DbmMode.ALL_OPERATE, fileLockSec,
+					filePermission);
+			dbm.setFormat(format);
+			boolean isCommitted = false;
+			try {
+				for (Map.Entry<String, Long> entry : deltaMap.entrySet()) {
+					String key = entry.getKey();
+					long value = parse(key, dbm.read(key))
+							+ entry.getValue().longValue();
+					dbm.write(key, Long.toString(value));
+					valueMap.put(key, value);
+				}
+				dbm.commit();
+				isCommitted = true;
+			} finally {
+				if (!isCommitted) {
+					dbm.rollback();
+				}
+			}
+			for (Map.Entry<String, Long> entry : valueMap.entrySet()) {
+				flushedMap.put(entry.getKey(), new long[] {
+						entry.getValue().longValue(),
+						sumMap.get(entry.getKey()).longValue() });
+			}
+		}
+		// 反映に成功した場合のみ加算回数を差し引く
+		unflushedCount.add(-count);
+		lastFailure = null;
+	}
+
+	/**
+	 * カウンタをクローズする.
+	 * <p>
+	 * 一定間隔での反映を停止し、未反映の加算値をDBMファイルに反映します.<br>
+	 * 実行中の加算の完了を待ってからクローズ済みとするため、クローズ前に受け付けた加算は全て反映されます.
+	 * </p>
+	 *
+	 * @throws Exception
+	 *             DBMファイル書き込み時に例外発生した場合
+	 */
+	public void close() throws Exception {
+		closeLock.writeLock().lock();
+		try {
+			isClosed = true;
+		} finally {
+			closeLock.writeLock().unlock();
+		}
+		synchronized (executorLock) {
+			if (executor != null) {
+				executor.shutdown();
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * 反映を行うスレッドを取得する.
+	 * <p>
+	 * 初回のみスレッドを起動し、一定間隔での反映を開始します.<br>
+	 * 反映中も加算をブロックしないよう、反映とは別のロックで起動します.
+	 * </p>
+	 *
+	 * @return 反映を行うスレッド
+	 */
+	private ScheduledExecutorService getExecutor() {
+		if (executor != null) {
+			return executor;
+		}
+		synchronized (executorLock) {
+			if (executor != null) {
+				return executor;
+			}
+			ScheduledThreadPoolExecutor e = new ScheduledThreadPoolExecutor(1,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "DbmCounter-"
+									+ dbmFilePath);
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			e.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+			if (flushIntervalMillis > 0) {
+				e.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						flushQuietly();
+					}
+				}, flushIntervalMillis, flushIntervalMillis,
+						TimeUnit.MILLISECONDS);
+			}
+			executor = e;
+			return e;
+		}
+	}
+
+	/**
+	 * 未反映の加算値をDBMファイルに反映する.
+	 * <p>
+	 * 反映を行うスレッドから実行します.<br>
+	 * 反映に失敗した場合は、次回の反映時に再実行されます.<br>
+	 * 失敗時の例外は保持し、反映に成功するまで {@link #increment(String, long)} でthrowします.
+	 * </p>
+	 */
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (Exception e) {
+			// 未反映の加算値は次回の反映時に持ち越す
+			lastFailure = e;
+		}
+	}
+
+	/**
+	 * DBMファイルに反映済みの累計加算値を取得する.
+	 *
+	 * @param key
+	 *            キー
+	 * @return 反映済みの累計加算値
+	 */
+	private long getFlushed(String key) {
+		long[] flushed = flushedMap.get(key);
+		return (flushed == null) ? 0 : flushed[1];
+	}
+
+	/**
+	 * DBMの値を数値に変換する.
+	 *
+	 * @param key
+	 *            キー
+	 * @param data
+	 *            DBMの値
+	 * @return 数値.値が存在しない場合は0
+	 */
+	private long parse(String key, String data) {
+		if (data == null || data.isEmpty()) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(data);
+		} catch (NumberFormatException e) {
+			throw new DbmOperationException("カウンタの値が数値ではありません", dbmFilePath,
+					key, data);
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package jp.kt.dbm;
+
+import jp.kt.exception.KtException;
+
+/**
+ * DBMのファイルが破損している場合のException.
+ * <p>
+ * 書き込み途中のファイルとは異なり、リトライせずにthrowされます.
+ * </p>
+ *
+ * @author tatsuya.kumon
+ */
+public class DbmFileCorruptedException extends KtException {
+	private static final long serialVersionUID = 1L;
+
+	/** エラーコード */
+	private static final String CODE = "A030";
+
+	/**
+	 * コンストラクタ.
+	 *
+	 * @param dbmFilePath
+	 *            DBMファイルパス
+	 * @param detail
+	 *            破損内容
+	 */
+	public DbmFileCorruptedException(String dbmFilePath, String detail) {
+		super(CODE, "DBMのファイル " + dbmFilePath + " が破損しています: " + detail);
+	}
+}
@@ -0,0 +1,103 @@
+package jp.kt.dbm;
+
+import java.io.Serializable;
+
+/**
+ * DBMファイルの形式.
+ *
+ * @author tatsuya.kumon
+ */
+public class DbmFormat implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private int format;
+
+	private String text;
+
+	/**
+	 * シリアライズ形式.
+	 * <p>
+	 * {@link java.util.HashMap} オブジェクトをそのままバイナリでファイル化する従来の形式です.
+	 * </p>
+	 */
+	public static final DbmFormat SERIALIZED = new DbmFormat(1, "シリアライズ形式");
+
+	/**
+	 * ブロック形式.
+	 * <p>
+	 * レコードをキーの昇順にブロック単位で出力する形式です.<br>
+	 * ファイル全体をメモリに展開せずに順次読み書きできます.
+	 * </p>
+	 */
+	public static final DbmFormat BLOCK = new DbmFormat(2, "ブロック形式");
+
+	/**
+	 * 辞書付きブロック形式.
+	 * <p>
+	 * {@link #BLOCK} 形式に加え、ブロック内で重複する値を1度だけ出力します.<br>
+	 * 読み込み時は同じ値を同一のインスタンスとして共有するため、<br>
+	 * 値の種類が少ないDBMではファイルサイズとメモリ使用量を削減できます.
+	 * </p>
+	 */
+	public static final DbmFormat BLOCK_DICTIONARY = new DbmFormat(3,
+			"辞書付きブロック形式");
+
+	/**
+	 * 内部コンストラクタ.
+	 *
+	 * @param format
+	 *            ファイル形式
+	 * @param text
+	 *            形式文言
+	 */
+	private DbmFormat(int format, String text) {
+		this.format = format;
+		this.text = text;
+	}
+
+	/**
+	 * 形式文言を取得する.
+	 *
+	 * @return 形式文言
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * ブロック単位で出力する形式か判定する.
+	 *
+	 * @return {@link #BLOCK} 形式、もしくは {@link #BLOCK_DICTIONARY} 形式の場合はtrue
+	 */
+	boolean isBlock() {
+		return this.format != SERIALIZED.format;
+	}
+
+	/*
+	 * (非 Javadoc)
+	 *
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (obj instanceof DbmFormat) {
+			if (((DbmFormat) obj).format == this.format) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * (非 Javadoc)
+	 *
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return format;
+	}
+}
@@ -0,0 +1,330 @@
+package jp.kt.dbm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DBMの一括取り込み・出力で扱うテキスト形式.
+ * <p>
+ * 1行につき1レコードで、キーと値の2項目で構成されます.
+ * </p>
+ *
+ * @author tatsuya.kumon
+ */
+public class DbmTextFormat implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private int format;
+
+	private String text;
+
+	/** TSVでnullの値を表す文字列 */
+	private static final String TSV_NULL = "\\N";
+
+	/**
+	 * タブ区切り形式.
+	 * <p>
+	 * キーと値をタブで区切ります.<br>
+	 * キーや値に含まれるタブ、改行（LF）、復帰（CR）、バックスラッシュは、<br>
+	 * それぞれ「\t」「\n」「\r」「\\」にエスケープします.<br>
+	 * 値がnullの場合は「\N」と出力し、読み込み時はnullとして扱います.
+	 * </p>
+	 */
+	public static final DbmTextFormat TSV = new DbmTextFormat(1, "TSV");
+
+	/**
+	 * カンマ区切り形式.
+	 * <p>
+	 * キーと値をカンマで区切ります.<br>
+	 * カンマ、ダブルクォート、改行を含む項目はダブルクォートで囲みます（RFC 4180準拠）.<br>
+	 * 値がnullの場合は空の項目、空文字の場合は「""」と出力し、<br>
+	 * 読み込み時もダブルクォートで囲まれていない空の値はnullとして扱います.
+	 * </p>
+	 */
+	public static final DbmTextFormat CSV = new DbmTextFormat(2, "CSV");
+
+	/**
+	 * 内部コンストラクタ.
+	 *
+	 * @param format
+	 *            テキスト形式
+	 * @param text
+	 *            形式文言
+	 */
+	private DbmTextFormat(int format, String text) {
+		this.format = format;
+		this.text = text;
+	}
+
+	/**
+	 * 形式文言を取得する.
+	 *
+	 * @return 形式文言
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * レコードを1件読み込む.
+	 * <p>
+	 * 空行は読み飛ばします.
+	 * </p>
+	 *
+	 * @param reader
+	 *            入力元
+	 * @return キーと値の配列.終端に達した場合はnull
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	String[] readRecord(BufferedReader reader) throws IOException {
+		if (this.format == TSV.format) {
+			return readTsv(reader);
+		}
+		return readCsv(reader);
+	}
+
+	/**
+	 * レコードを1件出力する.
+	 * <p>
+	 * 値がnullの場合は、空文字と区別できる形式で出力します.
+	 * </p>
+	 *
+	 * @param writer
+	 *            出力先
+	 * @param key
+	 *            キー
+	 * @param value
+	 *            値
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	void writeRecord(Writer writer, String key, String value)
+			throws IOException {
+		if (this.format == TSV.format) {
+			writer.write(escapeTsv(key));
+			writer.write('\t');
+			writer.write((value == null) ? TSV_NULL : escapeTsv(value));
+			writer.write('\n');
+		} else {
+			writer.write(quoteCsv(key));
+			writer.write(',');
+			writer.write(quoteCsv(value));
+			writer.write("\r\n");
+		}
+	}
+
+	/**
+	 * TSVのレコードを1件読み込む.
+	 *
+	 * @param reader
+	 *            入力元
+	 * @return キーと値の配列.終端に達した場合はnull
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private String[] readTsv(BufferedReader reader) throws IOException {
+		String line;
+		do {
+			line = reader.readLine();
+			if (line == null) {
+				return null;
+			}
+		} while (line.isEmpty());
+		int index = line.indexOf('\t');
+		if (index < 0) {
+			throw new DbmOperationException(text + "の形式が不正です", null, line);
+		}
+		String value = line.substring(index + 1);
+		return new String[] { unescapeTsv(line.substring(0, index)),
+				TSV_NULL.equals(value) ? null : unescapeTsv(value) };
+	}
+
+	/**
+	 * CSVのレコードを1件読み込む.
+	 * <p>
+	 * ダブルクォートで囲まれていない空の値はnullとして返します.
+	 * </p>
+	 *
+	 * @param reader
+	 *            入力元
+	 * @return キーと値の配列.終端に達した場合はnull
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	private String[] readCsv(BufferedReader reader) throws IOException {
+		while (true) {
+			List<String> fieldList = new ArrayList<String>();
+			StringBuilder field = new StringBuilder();
+			boolean isQuoted = false;
+			boolean isFieldQuoted = false;
+			boolean isRead = false;
+			boolean isEndOfLine = false;
+			int c;
+			while (!isEndOfLine && (c = reader.read()) >= 0) {
+				isRead = true;
+				if (isQuoted) {
+					if (c == '"') {
+						reader.mark(1);
+						if (reader.read() == '"') {
+							// エスケープされたダブルクォート
+							field.append('"');
+						} else {
+							reader.reset();
+							isQuoted = false;
+						}
+					} else {
+						field.append((char) c);
+					}
+				} else if (c == '"') {
+					isQuoted = true;
+					isFieldQuoted = true;
+				} else if (c == ',') {
+					fieldList.add(toCsvField(field, isFieldQuoted));
+					field.setLength(0);
+					isFieldQuoted = false;
+				} else if (c == '\r' || c == '\n') {
+					if (c == '\r') {
+						reader.mark(1);
+						if (reader.read() != '\n') {
+							reader.reset();
+						}
+					}
+					isEndOfLine = true;
+				} else {
+					field.append((char) c);
+				}
+			}
+			if (!isRead) {
+				// 終端
+				return null;
+			}
+			fieldList.add(toCsvField(field, isFieldQuoted));
+			if (fieldList.size() == 1 && fieldList.get(0) == null) {
+				// 空行は読み飛ばす
+				continue;
+			}
+			if (fieldList.size() != 2) {
+				throw new DbmOperationException(text + "の形式が不正です", null,
+						fieldList.toString());
+			}
+			if (fieldList.get(0) == null) {
+				// キーはnullにしない
+				fieldList.set(0, "");
+			}
+			return fieldList.toArray(new String[2]);
+		}
+	}
+
+	/**
+	 * 読み込んだCSVの項目を文字列に変換する.
+	 *
+	 * @param field
+	 *            項目の内容
+	 * @param isQuoted
+	 *            ダブルクォートで囲まれていた場合はtrue
+	 * @return 文字列.ダブルクォートで囲まれていない空の項目はnull
+	 */
+	private static String toCsvField(StringBuilder field, boolean isQuoted) {
+		if (field.length() == 0 && !isQuoted) {
+			return null;
+		}
+		return field.toString();
+	}
+
+	/**
+	 * TSVの項目をエスケープする.
+	 *
+	 * @param s
+	 *            文字列
+	 * @return エスケープした文字列
+	 */
+	private static String escapeTsv(String s) {
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '\t':
+				sb.append("\\t");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * TSVの項目のエスケープを解除する.
+	 *
+	 * @param s
+	 *            文字列
+	 * @return エスケープを解除した文字列
+	 */
+	private static String unescapeTsv(String s) {
+		if (s.indexOf('\\') < 0) {
+			return s;
+		}
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\\' && i + 1 < s.length()) {
+				char next = s.charAt(++i);
+				switch (next) {
+				case 't':
+					sb.append('\t');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				default:
+					sb.append(next);
+				}
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 必要に応じてCSVの項目をダブルクォートで囲む.
+	 * <p>
+	 * nullは空の項目、空文字は「""」とします.
+	 * </p>
+	 *
+	 * @param s
+	 *            文字列
+	 * @return CSVの項目
+	 */
+	private static String quoteCsv(String s) {
+		if (s == null) {
+			return "";
+		}
+		boolean needsQuote = s.isEmpty();
+		for (int i = 0; i < s.length() && !needsQuote; i++) {
+			char c = s.charAt(i);
+			needsQuote = (c == ',' || c == '"' || c == '\r' || c == '\n');
+		}
+		if (!needsQuote) {
+			return s;
+		}
+		return "\"" + s.replace("\"", "\"\"") + "\"";
+	}
+}
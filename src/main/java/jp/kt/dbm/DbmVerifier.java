@@ -0,0 +1,228 @@
+package jp.kt.dbm;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import jp.kt.fileio.Find;
+import jp.kt.fileio.FindCondition;
+import jp.kt.fileio.FindCondition.Type;
+
+/**
+ * DBMファイルの検証.
+ * <p>
+ * ブロック形式（{@link DbmFormat#BLOCK}）のDBMファイルは、レコードを展開せずにブロックごとのチェックサムを検証します.<br>
+ * シリアライズ形式のDBMファイルは、全体を読み込めるかを検証します.<br>
+ * コンテナファイル（{@link DbmContainer}）は、ディレクトリとトレーラの整合性と、格納されている各DBMのデータを検証します.<br>
+ * 検証時はファイルロックを行いません（コンテナファイルは有効なディレクトリの確認時のみ共有ロックします）.
+ * </p>
+ *
+ * @author tatsuya.kumon
+ */
+public final class DbmVerifier {
+	/**
+	 * 内部コンストラクタ.
+	 */
+	private DbmVerifier() {
+	}
+
+	/**
+	 * 指定したディレクトリ配下の全てのDBMファイルを並列で検証する.
+	 * <p>
+	 * 並列数はCPU数となります.
+	 * </p>
+	 *
+	 * @param dir
+	 *            DBMファイルが存在するディレクトリ
+	 * @return 検証結果のリスト（DBMファイルパスの昇順）
+	 * @throws Exception
+	 *             検証中に例外発生した場合
+	 */
+	public static List<DbmVerifyResult> verify(String dir) throws Exception {
+		return verify(dir, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * 指定したディレクトリ配下の全てのDBMファイルを並列で検証する.
+	 * <p>
+	 * 対象のDBMファイルは {@link Dbm#getDbmFileList(String)} で検索されたものと、<br>
+	 * 同じディレクトリ配下を再帰的に検索したコンテナファイルです.<br>
+	 * コンテナファイルの検証結果は {@link #verifyContainerFile(String)} の結果を展開して返します.<br>
+	 * 検索後に削除された等でファイルを読み込めなかった場合は、そのファイルを正常でない検証結果として返します.
+	 * </p>
+	 *
+	 * @param dir
+	 *            DBMファイルが存在するディレクトリ
+	 * @param parallelism
+	 *            検証の並列数
+	 * @return 検証結果のリスト（DBMファイルパスの昇順）
+	 * @throws Exception
+	 *             検証中に例外発生した場合
+	 */
+	public static List<DbmVerifyResult> verify(String dir, int parallelism)
+			throws Exception {
+		List<String> fileList = Dbm.getDbmFileList(dir);
+		// コンテナファイルを拡張子でfind検索
+		FindCondition condition = new FindCondition(dir, Type.ONLY_FILE, ".*\\"
+				+ DbmContainer.CONTAINER_FILE_EXT);
+		fileList.addAll(Find.execute(condition));
+		Collections.sort(fileList);
+		List<DbmVerifyResult> resultList = new ArrayList<DbmVerifyResult>();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			List<ForkJoinTask<List<DbmVerifyResult>>> taskList = new ArrayList<ForkJoinTask<List<DbmVerifyResult>>>();
+			for (final String filePath : fileList) {
+				taskList.add(pool.submit(new Callable<List<DbmVerifyResult>>() {
+					@Override
+					public List<DbmVerifyResult> call() throws Exception {
+						try {
+							if (filePath.endsWith(DbmContainer.CONTAINER_FILE_EXT)) {
+								return verifyContainerFile(filePath);
+							}
+							return Collections.singletonList(verifyFile(filePath));
+						} catch (IOException e) {
+							// 検索後に削除された場合等は、他のファイルの検証を継続する
+							return Collections.singletonList(new DbmVerifyResult(
+									filePath, 0, false, false, e.toString()));
+						} catch (DbmFileNotFoundException e) {
+							return Collections.singletonList(new DbmVerifyResult(
+									filePath, 0, false, false, e.getMessage()));
+						}
+					}
+				}));
+			}
+			for (ForkJoinTask<List<DbmVerifyResult>> task : taskList) {
+				try {
+					resultList.addAll(task.get());
+				} catch (ExecutionException e) {
+					throw (e.getCause() instanceof Exception) ? (Exception) e
+							.getCause() : e;
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+		return resultList;
+	}
+
+	/**
+	 * DBMファイルを1件検証する.
+	 *
+	 * @param dbmFilePath
+	 *            DBMファイルパス
+	 * @return 検証結果
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	public static DbmVerifyResult verifyFile(String dbmFilePath)
+			throws IOException {
+		InputStream in = new FileInputStream(dbmFilePath);
+		try {
+			return verifyStream(dbmFilePath, in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * コンテナファイルを1件検証する.
+	 * <p>
+	 * 1件目にコンテナファイル自体の検証結果、2件目以降に格納されているDBMごとの検証結果をDBM名の昇順で返します.<br>
+	 * DBMごとの検証結果のパスは「コンテナファイルパス#DBM名」となります.<br>
+	 * 再構成が中断されたファイルや、追記途中でプロセスが終了したファイルは、
+	 * コンテナファイル自体の検証結果が不完全となります（次のcommit時に修復されます）.
+	 * </p>
+	 *
+	 * @param containerFilePath
+	 *            コンテナファイルパス
+	 * @return 検証結果のリスト
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	public static List<DbmVerifyResult> verifyContainerFile(
+			String containerFilePath) throws IOException {
+		return new DbmContainer(containerFilePath).verify();
+	}
+
+	/**
+	 * DBMのデータを1件検証する.
+	 *
+	 * @param dbmFilePath
+	 *            検証結果に設定するDBMファイルパス
+	 * @param is
+	 *            DBMのデータを読み込むストリーム（クローズは呼び出し元で行う）
+	 * @return 検証結果
+	 * @throws IOException
+	 *             入出力エラーが発生した場合
+	 */
+	static DbmVerifyResult verifyStream(String dbmFilePath, InputStream is)
+			throws IOException {
+		InputStream in = new BufferedInputStream(is);
+		if (DbmBlockFile.isBlockFormat(in)) {
+			// ブロック形式
+			DbmBlockFile.Reader reader = null;
+			try {
+				// ヘッダの読み込みエラーもブロックと同様に扱う
+				reader = new DbmBlockFile.Reader(in);
+				long count = reader.verify();
+				return new DbmVerifyResult(dbmFilePath, count, true, false,
+						null);
+			} catch (EOFException e) {
+				// 完成後にリネームされるファイルのため破損とする
+				return new DbmVerifyResult(dbmFilePath, readCount(reader),
+						false, true, "終端に達していません");
+			} catch (StreamCorruptedException e) {
+				return new DbmVerifyResult(dbmFilePath, readCount(reader),
+						false, true, e.getMessage());
+			}
+		}
+		// シリアライズ形式
+		try {
+			ObjectInputStream ois = new ObjectInputStream(in);
+			Map<?, ?> recordMap = (Map<?, ?>) ois.readObject();
+			try {
+				// 有効期限Map
+				ois.readObject();
+			} catch (EOFException e) {
+				// 有効期限Mapが出力されていないファイル
+			}
+			return new DbmVerifyResult(dbmFilePath, recordMap.size(), true,
+					false, null);
+		} catch (EOFException e) {
+			return new DbmVerifyResult(dbmFilePath, 0, false, false,
+					"終端に達していません");
+		} catch (IOException e) {
+			return new DbmVerifyResult(dbmFilePath, 0, false, true,
+					e.toString());
+		} catch (ClassNotFoundException e) {
+			return new DbmVerifyResult(dbmFilePath, 0, false, true,
+					e.toString());
+		} catch (ClassCastException e) {
+			return new DbmVerifyResult(dbmFilePath, 0, false, true,
+					e.toString());
+		}
+	}
+
+	/**
+	 * 読み込めたレコード件数を取得する.
+	 *
+	 * @param reader
+	 *            ブロック形式の読み込み（ヘッダの読み込みに失敗した場合はnull）
+	 * @return 読み込めたレコード件数
+	 */
+	private static long readCount(DbmBlockFile.Reader reader) {
+		return (reader != null) ? reader.getReadCount() : 0;
+	}
+}
@@ -0,0 +1,125 @@
+package jp.kt.dbm;
+
+import java.io.Serializable;
+
+/**
+ * DBMファイルの検証結果.
+ *
+ * @author tatsuya.kumon
+ */
+public final class DbmVerifyResult implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** DBMファイルパス */
+	private final String dbmFilePath;
+
+	/** 正常なレコード件数 */
+	private final long recordCount;
+
+	/** 正常か */
+	private final boolean isValid;
+
+	/** 破損しているか */
+	private final boolean isCorrupted;
+
+	/** 検証結果のメッセージ */
+	private final String message;
+
+	/**
+	 * コンストラクタ.
+	 *
+	 * @param dbmFilePath
+	 *            DBMファイルパス
+	 * @param recordCount
+	 *            正常なレコード件数
+	 * @param isValid
+	 *            正常な場合はtrue
+	 * @param isCorrupted
+	 *            破損している場合はtrue
+	 * @param message
+	 *            検証結果のメッセージ
+	 */
+	DbmVerifyResult(String dbmFilePath, long recordCount, boolean isValid,
+			boolean isCorrupted, String message) {
+		this.dbmFilePath = dbmFilePath;
+		this.recordCount = recordCount;
+		this.isValid = isValid;
+		this.isCorrupted = isCorrupted;
+		this.message = message;
+	}
+
+	/**
+	 * DBMファイルパスを取得する.
+	 * <p>
+	 * コンテナファイル内のDBMの場合は「コンテナファイルパス#DBM名」となります.
+	 * </p>
+	 *
+	 * @return DBMファイルパス
+	 */
+	public String getDbmFilePath() {
+		return dbmFilePath;
+	}
+
+	/**
+	 * 正常なレコード件数を取得する.
+	 * <p>
+	 * 正常でない場合は、破損箇所より前の読み込めたレコード件数となります.
+	 * </p>
+	 *
+	 * @return 正常なレコード件数
+	 */
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * 正常か判定する.
+	 *
+	 * @return 終端まで正常に読み込めた場合はtrue
+	 */
+	public boolean isValid() {
+		return isValid;
+	}
+
+	/**
+	 * 破損しているか判定する.
+	 * <p>
+	 * シリアライズ形式のファイルが終端に達していないだけの場合（書き込み途中の場合）や、ファイルを読み込めなかった場合はfalseとなります.
+	 * </p>
+	 *
+	 * @return チェックサムの不一致などで破損している場合はtrue
+	 */
+	public boolean isCorrupted() {
+		return isCorrupted;
+	}
+
+	/**
+	 * 検証結果のメッセージを取得する.
+	 *
+	 * @return 検証結果のメッセージ.正常な場合はnull
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/*
+	 * (非 Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(dbmFilePath);
+		sb.append(": ");
+		sb.append(isValid ? "OK" : (isCorrupted ? "CORRUPTED" : "INCOMPLETE"));
+		sb.append(" (");
+		sb.append(recordCount);
+		sb.append(")");
+		if (message != null) {
+			sb.append(" ");
+			sb.append(message);
+		}
+		return sb.toString();
+	}
+}
@@ -3,7 +3,12 @@
  *
  * <ul>
  * <li> {@link java.util.HashMap} オブジェクトをそのままバイナリでファイル化しています.
+ * <li>有効期限付きレコードがある場合は、有効期限の {@link java.util.HashMap} を続けて出力しています.
+ * <li>{@link jp.kt.dbm.DbmFormat#BLOCK} 形式の場合は、レコードをキーの昇順にブロック単位で出力しています.
+ * <li>{@link jp.kt.dbm.DbmFormat#BLOCK} 形式の場合は、ブロックごとにCRC32のチェックサムを出力しています.
+ * <li>{@link jp.kt.dbm.DbmFormat#BLOCK_DICTIONARY} 形式の場合は、ブロック内で重複する値を辞書として出力しています.
  * <li>拡張子は .ktdb です.
+ * <li>複数のDBMを1ファイルにまとめる {@link jp.kt.dbm.DbmContainer} の拡張子は .ktdbc です.
  * </ul>
  *
  * @author tatsuya.kumon